@@ -10,9 +10,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
 import android.media.MediaRecorder.AudioSource;
 import android.media.audiofx.AcousticEchoCanceler;
@@ -24,11 +26,14 @@ import android.telephony.TelephonyManager;
 
 import com.opentok.android.BaseAudioDevice;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
 
 import timber.log.Timber;
 
@@ -45,27 +50,28 @@ class AdvancedAudioDevice extends BaseAudioDevice {
     // Max 10 ms @ 48 kHz - Stereo
     private static final int DEFAULT_START_RENDERER_AND_CAPTURER_DELAY = 5 * 1000;
     private static final int DEFAULT_BLUETOOTH_SCO_START_DELAY = 2000;
+    // Longer than one blocking 10 ms read or write, in case it stalls.
+    private static final long AUDIO_THREAD_STOP_TIMEOUT_MS = 500;
+    private static final long UNKNOWN_FRAME_OFFSET = Long.MIN_VALUE;
 
     private Context context;
+    // Opt-in fast mixer path, see buildLowLatencyTrack()
+    private final boolean lowLatency;
+    // AudioTrack underruns seen so far, to grow its buffer after new ones
+    private int renderUnderruns;
+    private boolean tuneRenderBuffer;
 
     private AudioTrack audioTrack;
     private AudioRecord audioRecord;
 
-    // Capture & render buffers
+    // Capture & render buffers, shared directly with AudioRecord/AudioTrack
+    // and the audio bus without intermediate copies
     private ByteBuffer playBuffer;
     private ByteBuffer recBuffer;
-    private byte[] tempBufPlay;
-    private byte[] tempBufRec;
-
-    private final ReentrantLock rendererLock = new ReentrantLock(true);
-    private final Condition renderEvent = rendererLock.newCondition();
-    private volatile boolean isRendering = false;
-    private volatile boolean shutdownRenderThread = false;
 
-    private final ReentrantLock captureLock = new ReentrantLock(true);
-    private final Condition captureEvent = captureLock.newCondition();
-    private volatile boolean isCapturing = false;
-    private volatile boolean shutdownCaptureThread = false;
+    // Replaced with each new capture or render thread.
+    private volatile AudioLoopState renderState = newLoopState(null);
+    private volatile AudioLoopState captureState = newLoopState(null);
 
     private AudioSettings captureSettings;
     private AudioSettings rendererSettings;
@@ -74,17 +80,34 @@ class AdvancedAudioDevice extends BaseAudioDevice {
 
     // Capturing delay estimation
     private int estimatedCaptureDelay = 0;
+    private long framesRead = 0;
+    // framesRead at the last start, and what to add to framesRead for the
+    // stream position in capture timestamps; found from the first timestamp
+    // after each start.
+    private long captureStartFrame = 0;
+    private long captureStartNs = 0;
+    private long captureFrameOffset = UNKNOWN_FRAME_OFFSET;
+    private final AudioDelayEstimator captureDelay = new AudioDelayEstimator();
 
     // Rendering delay estimation
     private int bufferedPlaySamples = 0;
     private int playPosition = 0;
     private int estimatedRenderDelay = 0;
+    private long framesWritten = 0;
+    private final AudioDelayEstimator renderDelay = new AudioDelayEstimator();
 
     private AudioManager audioManager;
     private AudioManagerMode audioManagerMode = new AudioManagerMode();
 
     private int outputSamplingRate = DEFAULT_SAMPLE_RATE;
     private int captureSamplingRate = DEFAULT_SAMPLE_RATE;
+    // Rate the AudioRecord actually runs at. When the device refuses
+    // captureSamplingRate, captureResampler converts on the capture thread.
+    private int recordSamplingRate = DEFAULT_SAMPLE_RATE;
+    private StreamingResampler captureResampler;
+    private ShortBuffer recSamples;
+    private ByteBuffer resampledBuffer;
+    private ShortBuffer resampledSamples;
     private int samplesPerBuffer = DEFAULT_SAMPLES_PER_BUFFER;
 
     // For headset receiver.
@@ -171,6 +194,10 @@ class AdvancedAudioDevice extends BaseAudioDevice {
 
     private AudioState audioState = new AudioState();
 
+    private static AudioLoopState newLoopState(Thread worker) {
+        return new AudioLoopState(worker, AUDIO_THREAD_STOP_TIMEOUT_MS, message -> Timber.w(message));
+    }
+
     private BroadcastReceiver headsetBroadcastReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -348,12 +375,12 @@ class AdvancedAudioDevice extends BaseAudioDevice {
     }
 
     private void stopRendererAndCapturer() {
-        if (isRendering) {
+        if (renderState.isRunning()) {
             stopRenderer();
             wasRendering = true;
         }
 
-        if (isCapturing) {
+        if (captureState.isRunning()) {
             stopCapturer();
             wasCapturing = true;
         }
@@ -420,14 +447,22 @@ class AdvancedAudioDevice extends BaseAudioDevice {
     }
 
     public AdvancedAudioDevice(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param lowLatency ask for the low latency output path and size the
+     *                   capture and render buffers in whole output bursts
+     */
+    public AdvancedAudioDevice(Context context, boolean lowLatency) {
         this.context = context;
+        this.lowLatency = lowLatency;
 
         try {
             recBuffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
         } catch (Exception e) {
             Timber.e(e.getMessage());
         }
-        tempBufRec = new byte[DEFAULT_BUFFER_SIZE];
 
         audioManager = (AudioManager)context.getSystemService(Context.AUDIO_SERVICE);
         bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -466,8 +501,8 @@ class AdvancedAudioDevice extends BaseAudioDevice {
             Timber.e(e.getMessage());
         }
 
-        tempBufPlay = new byte[outputBufferSize];
-
+        // Capture at the native rate too, rather than have the HAL resample.
+        captureSamplingRate = outputSamplingRate;
         captureSettings = new AudioSettings(captureSamplingRate, NUM_CHANNELS_CAPTURING);
         rendererSettings = new AudioSettings(outputSamplingRate, NUM_CHANNELS_RENDERING);
 
@@ -487,16 +522,6 @@ class AdvancedAudioDevice extends BaseAudioDevice {
 
     @Override
     public boolean initCapturer() {
-        // get the minimum buffer size that can be used
-        int minRecBufSize = AudioRecord.getMinBufferSize(
-            captureSettings.getSampleRate(),
-            NUM_CHANNELS_CAPTURING == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO,
-            AudioFormat.ENCODING_PCM_16BIT
-        );
-
-        // double size to be more safe
-        int recBufSize = minRecBufSize * 2;
-
         // release the object
         if (noiseSuppressor != null) {
             noiseSuppressor.release();
@@ -513,15 +538,30 @@ class AdvancedAudioDevice extends BaseAudioDevice {
             audioRecord = null;
         }
 
-        try {
-            int channelConfig = NUM_CHANNELS_CAPTURING == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        recordSamplingRate = captureSettings.getSampleRate();
+        audioRecord = createAudioRecord(recordSamplingRate);
+        if (audioRecord == null && recordSamplingRate != DEFAULT_SAMPLE_RATE) {
+            Timber.w("Audio capture at " + recordSamplingRate + " Hz not supported, resampling from "
+                    + DEFAULT_SAMPLE_RATE + " Hz");
+            recordSamplingRate = DEFAULT_SAMPLE_RATE;
+            audioRecord = createAudioRecord(recordSamplingRate);
+        }
 
-            audioRecord = new AudioRecord(
-                    AudioSource.VOICE_COMMUNICATION,
-                    captureSettings.getSampleRate(),
-                    channelConfig,
-                    AudioFormat.ENCODING_PCM_16BIT, recBufSize);
+        // Check that the audioRecord is ready to be used.
+        if (audioRecord == null) {
+            String errorDescription = String.format(Locale.getDefault(), "Audio capture could not be initialized.\n" +
+                            "Requested parameters\n" +
+                            "  Sampling Rate: %d\n" +
+                            "  Number of channels: %d\n" +
+                            "  Buffer size: %d\n",
+                    recordSamplingRate,
+                    captureSettings.getNumChannels(),
+                    getMinRecBufSize(recordSamplingRate));
+            Timber.e(errorDescription);
+            throw new RuntimeException(errorDescription);
+        }
 
+        try {
             if (NoiseSuppressor.isAvailable()) {
                 noiseSuppressor = NoiseSuppressor.create(audioRecord.getAudioSessionId());
             }
@@ -534,30 +574,86 @@ class AdvancedAudioDevice extends BaseAudioDevice {
             throw new RuntimeException(e.getMessage());
         }
 
-        // Check that the audioRecord is ready to be used.
-        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
-            String errorDescription = String.format(Locale.getDefault(), "Audio capture could not be initialized.\n" +
-                            "Requested parameters\n" +
-                            "  Sampling Rate: %d\n" +
-                            "  Number of channels: %d\n" +
-                            "  Buffer size: %d\n",
-                    captureSettings.getSampleRate(),
-                    captureSettings.getNumChannels(),
-                    minRecBufSize);
-            Timber.e(errorDescription);
-            throw new RuntimeException(errorDescription);
+        // 10 ms reads, converted into buffers of their own when resampling
+        int recBytes = (recordSamplingRate / 100) * SAMPLE_SIZE_IN_BYTES * NUM_CHANNELS_CAPTURING;
+        if (recBuffer == null || recBuffer.capacity() < recBytes) {
+            recBuffer = ByteBuffer.allocateDirect(recBytes);
+        }
+        captureResampler = null;
+        if (recordSamplingRate != captureSamplingRate) {
+            captureResampler = new StreamingResampler(recordSamplingRate, captureSamplingRate);
+            // AudioRecord and the audio bus use native byte order
+            recSamples = recBuffer.duplicate().order(ByteOrder.nativeOrder()).asShortBuffer();
+            resampledBuffer = ByteBuffer.allocateDirect(
+                    captureResampler.maxOutput(recordSamplingRate / 100) * SAMPLE_SIZE_IN_BYTES)
+                    .order(ByteOrder.nativeOrder());
+            resampledSamples = resampledBuffer.asShortBuffer();
         }
 
         registerPhoneStateListener();
 
-        shutdownCaptureThread = false;
-        new Thread(captureThread).start();
+        Thread thread = new Thread(captureThread);
+        captureState = newLoopState(thread);
+        thread.start();
         return true;
     }
 
+    private static int getMinRecBufSize(int sampleRate) {
+        return AudioRecord.getMinBufferSize(
+            sampleRate,
+            NUM_CHANNELS_CAPTURING == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO,
+            AudioFormat.ENCODING_PCM_16BIT
+        );
+    }
+
+    // An initialized AudioRecord capturing at sampleRate, or null if the
+    // device does not support that rate.
+    private AudioRecord createAudioRecord(int sampleRate) {
+        // get the minimum buffer size that can be used
+        int minRecBufSize = getMinRecBufSize(sampleRate);
+        if (minRecBufSize <= 0) {
+            return null;
+        }
+
+        // double size to be more safe, unless latency matters more
+        int recBufSize = lowLatency ? roundUpToBursts(minRecBufSize, NUM_CHANNELS_CAPTURING) : minRecBufSize * 2;
+        int channelConfig = NUM_CHANNELS_CAPTURING == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+
+        AudioRecord record;
+        try {
+            if (lowLatency && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                record = new AudioRecord.Builder()
+                        .setAudioSource(AudioSource.VOICE_COMMUNICATION)
+                        .setAudioFormat(new AudioFormat.Builder()
+                                .setSampleRate(sampleRate)
+                                .setChannelMask(channelConfig)
+                                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                                .build())
+                        .setBufferSizeInBytes(recBufSize)
+                        .build();
+            } else {
+                record = new AudioRecord(
+                        AudioSource.VOICE_COMMUNICATION,
+                        sampleRate,
+                        channelConfig,
+                        AudioFormat.ENCODING_PCM_16BIT, recBufSize);
+            }
+        } catch (Exception e) {
+            Timber.e("createAudioRecord(): " + e.getMessage());
+            return null;
+        }
+
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            record.release();
+            return null;
+        }
+        return record;
+    }
+
     @Override
     public boolean destroyCapturer() {
-        captureLock.lock();
+        // The thread must be out of audioRecord.read() before release.
+        captureState.shutdown();
 
         // release the object
         if (null != echoCanceler) {
@@ -572,10 +668,6 @@ class AdvancedAudioDevice extends BaseAudioDevice {
 
         audioRecord.release();
         audioRecord = null;
-        shutdownCaptureThread = true;
-        captureEvent.signal();
-
-        captureLock.unlock();
 
         unRegisterPhoneStateListener();
         wasCapturing = false;
@@ -599,10 +691,17 @@ class AdvancedAudioDevice extends BaseAudioDevice {
             throw new RuntimeException(e.getMessage());
         }
 
-        captureLock.lock();
-        isCapturing = true;
-        captureEvent.signal();
-        captureLock.unlock();
+        // Stopping and starting does not necessarily reset the frame
+        // position AudioRecord timestamps report, so framesRead keeps
+        // counting and is mapped onto that position again.
+        captureStartNs = System.nanoTime();
+        captureStartFrame = framesRead;
+        captureFrameOffset = UNKNOWN_FRAME_OFFSET;
+        captureDelay.reset();
+        if (captureResampler != null) {
+            captureResampler.reset();
+        }
+        captureState.start();
         return true;
     }
 
@@ -612,7 +711,8 @@ class AdvancedAudioDevice extends BaseAudioDevice {
         if (audioRecord == null) {
             throw new IllegalStateException("stopCapturer(): stop() called on an uninitialized AudioRecord");
         }
-        captureLock.lock();
+        // Let the thread finish the read in progress first.
+        captureState.stop();
         try {
             // Only stop if we are recording.
             if (audioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
@@ -620,16 +720,14 @@ class AdvancedAudioDevice extends BaseAudioDevice {
             }
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage());
-        } finally {
-            // Ensure we always unlock
-            isCapturing = false;
-            captureLock.unlock();
         }
         return true;
     }
 
     private Runnable captureThread = () -> {
-        int samplesToRec = captureSamplingRate / 100;
+        AudioLoopState state = captureState;
+        StreamingResampler resampler = captureResampler;
+        int samplesToRec = recordSamplingRate / 100;
         int samplesRead;
 
         try {
@@ -638,45 +736,89 @@ class AdvancedAudioDevice extends BaseAudioDevice {
             Timber.e("android.os.Process.setThreadPriority(): " + e.getMessage());
         }
 
-        while (!shutdownCaptureThread) {
-            captureLock.lock();
-            try {
-                if (!this.isCapturing) {
-                    captureEvent.await();
-                    continue;
-                } else {
-                    if (audioRecord == null) {
-                        continue;
-                    }
-                    int lengthInBytes = (samplesToRec << 1) * NUM_CHANNELS_CAPTURING;
-                    int readBytes = audioRecord.read(tempBufRec, 0, lengthInBytes);
-                    if (readBytes >= 0) {
-                        recBuffer.rewind();
-                        recBuffer.put(tempBufRec);
-                        samplesRead = (readBytes >> 1) / NUM_CHANNELS_CAPTURING;
-                    } else {
-                        switch (readBytes) {
-                            case AudioRecord.ERROR_BAD_VALUE:
-                                throw new RuntimeException("captureThread(): AudioRecord.ERROR_BAD_VALUE");
-                            case AudioRecord.ERROR_INVALID_OPERATION:
-                                throw new RuntimeException("captureThread(): AudioRecord.ERROR_INVALID_OPERATION");
-                            case AudioRecord.ERROR:
-                            default:
-                                throw new RuntimeException("captureThread(): AudioRecord.ERROR or default");
-                        }
+        while (state.awaitRunning()) {
+            // only released after this thread has exited
+            AudioRecord record = audioRecord;
+            if (record == null) {
+                break;
+            }
+            int lengthInBytes = (samplesToRec << 1) * NUM_CHANNELS_CAPTURING;
+            // Read straight into the buffer handed to the audio bus. A
+            // blocking read only comes back short when recording is
+            // stopped, then keep what was read so far.
+            int readBytes = 0;
+            while (readBytes < lengthInBytes) {
+                int result = record.read(bufferAt(recBuffer, readBytes), lengthInBytes - readBytes);
+                if (result < 0) {
+                    switch (result) {
+                        case AudioRecord.ERROR_BAD_VALUE:
+                            throw new RuntimeException("captureThread(): AudioRecord.ERROR_BAD_VALUE");
+                        case AudioRecord.ERROR_INVALID_OPERATION:
+                            throw new RuntimeException("captureThread(): AudioRecord.ERROR_INVALID_OPERATION");
+                        case AudioRecord.ERROR:
+                        default:
+                            throw new RuntimeException("captureThread(): AudioRecord.ERROR or default");
                     }
                 }
-            } catch (Exception e) {
-                throw new RuntimeException(e.getMessage());
-            } finally {
-                // Ensure we always unlock
-                captureLock.unlock();
+                if (result == 0) {
+                    break;
+                }
+                readBytes += result;
+            }
+            samplesRead = (readBytes >> 1) / NUM_CHANNELS_CAPTURING;
+            if (samplesRead == 0) {
+                // stopped before any data: nothing to deliver or measure
+                continue;
+            }
+            framesRead += samplesRead;
+
+            if (resampler != null) {
+                int samplesResampled = resampler.process(recSamples, samplesRead, resampledSamples);
+                getAudioBus().writeCaptureData(resampledBuffer, samplesResampled);
+            } else {
+                getAudioBus().writeCaptureData(recBuffer, samplesRead);
             }
-            getAudioBus().writeCaptureData(recBuffer, samplesRead);
-            estimatedCaptureDelay = samplesRead * 1000 / captureSamplingRate;
+            estimatedCaptureDelay = captureDelay.update(
+                    timestampCaptureDelayMs(record, samplesRead),
+                    samplesRead * 1000.0 / recordSamplingRate);
         }
     };
 
+    // Age of the oldest frame just read, from the time the device reports
+    // for a recent frame position. NaN where that is not available.
+    private double timestampCaptureDelayMs(AudioRecord record, int samplesRead) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return Double.NaN;
+        }
+        long now = System.nanoTime();
+        if (captureDelay.timestampDue(now)) {
+            captureDelay.timestampPolled(now, record.getTimestamp(
+                    captureDelay.timestamp, AudioTimestamp.TIMEBASE_MONOTONIC) == AudioRecord.SUCCESS);
+        }
+        if (captureFrameOffset == UNKNOWN_FRAME_OFFSET) {
+            double startPosition = captureDelay.framePositionAt(captureStartNs, recordSamplingRate);
+            if (Double.isNaN(startPosition)) {
+                return Double.NaN;
+            }
+            // Recording began when startRecording() returned, give or take
+            // the time the device needed to deliver a first frame. A
+            // negative position means the count restarted at zero.
+            captureFrameOffset = Math.max(0, Math.round(startPosition)) - captureStartFrame;
+        }
+        return -captureDelay.msUntilFrame(framesRead - samplesRead + captureFrameOffset, now, recordSamplingRate);
+    }
+
+    // AudioRecord writes to the start of a direct buffer whatever its
+    // position, so resuming a short read needs a view starting at offset.
+    private static ByteBuffer bufferAt(ByteBuffer buffer, int offset) {
+        if (offset == 0) {
+            return buffer;
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        return view.slice();
+    }
+
 
     @Override
     public boolean initRenderer() {
@@ -712,19 +854,28 @@ class AdvancedAudioDevice extends BaseAudioDevice {
             audioTrack = null;
         }
 
-        try {
-            int channelConfig = (NUM_CHANNELS_RENDERING == 1) ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
-            /* DEV-11766 (epic DEV-11304) : Setting Stream Music instead of Stream Voice call for A7 lite devices to enhance volume */
-            audioTrack = new AudioTrack(
-                    /*AudioManager.STREAM_VOICE_CALL*/ AudioManager.STREAM_MUSIC,
-                    rendererSettings.getSampleRate(),
-                    channelConfig,
-                    AudioFormat.ENCODING_PCM_16BIT,
-                    minPlayBufSize >= 6000 ? minPlayBufSize : minPlayBufSize * 2,
-                    AudioTrack.MODE_STREAM
-            );
-        } catch (Exception e) {
-            throw new RuntimeException(e.getMessage());
+        int channelConfig = (NUM_CHANNELS_RENDERING == 1) ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        renderUnderruns = 0;
+        tuneRenderBuffer = false;
+        if (lowLatency && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            audioTrack = buildLowLatencyTrack(channelConfig, minPlayBufSize);
+            tuneRenderBuffer = audioTrack != null;
+        }
+
+        if (audioTrack == null) {
+            try {
+                /* DEV-11766 (epic DEV-11304) : Setting Stream Music instead of Stream Voice call for A7 lite devices to enhance volume */
+                audioTrack = new AudioTrack(
+                        /*AudioManager.STREAM_VOICE_CALL*/ AudioManager.STREAM_MUSIC,
+                        rendererSettings.getSampleRate(),
+                        channelConfig,
+                        AudioFormat.ENCODING_PCM_16BIT,
+                        minPlayBufSize >= 6000 ? minPlayBufSize : minPlayBufSize * 2,
+                        AudioTrack.MODE_STREAM
+                );
+            } catch (Exception e) {
+                throw new RuntimeException(e.getMessage());
+            }
         }
 
         // Check that the audioRecord is ready to be used.
@@ -733,21 +884,83 @@ class AdvancedAudioDevice extends BaseAudioDevice {
         }
 
         bufferedPlaySamples = 0;
+        framesWritten = 0;
 
         registerPhoneStateListener();
 
-        shutdownRenderThread = false;
-        new Thread(renderThread).start();
+        Thread thread = new Thread(renderThread);
+        renderState = newLoopState(thread);
+        thread.start();
         return true;
     }
 
+    /**
+     * An AudioTrack on the fast mixer path, or null where the device does
+     * not grant it; the caller then builds the regular one. Its capacity
+     * is what the regular track would get, in whole bursts, but it starts
+     * out playing from two bursts and only grows towards the capacity on
+     * underruns, see tuneRenderBufferSize().
+     */
+    private AudioTrack buildLowLatencyTrack(int channelConfig, int minPlayBufSize) {
+        AudioTrack track;
+        try {
+            track = new AudioTrack.Builder()
+                    // same routing and volume as the STREAM_MUSIC track
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(AudioAttributes.USAGE_MEDIA)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                            .build())
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setSampleRate(rendererSettings.getSampleRate())
+                            .setChannelMask(channelConfig)
+                            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                            .build())
+                    .setBufferSizeInBytes(roundUpToBursts(minPlayBufSize * 2, NUM_CHANNELS_RENDERING))
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                    .build();
+        } catch (Exception e) {
+            Timber.w("low latency AudioTrack not available: " + e.getMessage());
+            return null;
+        }
+        if (track.getState() != AudioTrack.STATE_INITIALIZED
+                || track.getPerformanceMode() != AudioTrack.PERFORMANCE_MODE_LOW_LATENCY) {
+            Timber.w("low latency AudioTrack refused, using the regular one");
+            track.release();
+            return null;
+        }
+        track.setBufferSizeInFrames(2 * samplesPerBuffer);
+        Timber.d("low latency AudioTrack: " + track.getBufferSizeInFrames() + " of "
+                + track.getBufferCapacityInFrames() + " frames");
+        return track;
+    }
+
+    // Grows the track's buffer by one burst after each new underrun, up to
+    // its capacity. Render thread only.
+    private void tuneRenderBufferSize(AudioTrack track) {
+        int underruns = track.getUnderrunCount();
+        if (underruns <= renderUnderruns) {
+            return;
+        }
+        renderUnderruns = underruns;
+        int size = track.getBufferSizeInFrames() + samplesPerBuffer;
+        if (size <= track.getBufferCapacityInFrames()) {
+            size = track.setBufferSizeInFrames(size);
+            Timber.d("AudioTrack underrun, buffer now " + size + " frames");
+        }
+    }
+
+    // Smallest whole number of output bursts holding at least minBytes.
+    private int roundUpToBursts(int minBytes, int channels) {
+        int burstBytes = samplesPerBuffer * SAMPLE_SIZE_IN_BYTES * channels;
+        return (minBytes + burstBytes - 1) / burstBytes * burstBytes;
+    }
+
     private void destroyAudioTrack() {
-        rendererLock.lock();
+        // The thread must be out of audioTrack.write() before release.
+        renderState.shutdown();
         audioTrack.release();
         audioTrack = null;
-        shutdownRenderThread = true;
-        renderEvent.signal();
-        rendererLock.unlock();
     }
 
     @Override
@@ -767,6 +980,19 @@ class AdvancedAudioDevice extends BaseAudioDevice {
         return estimatedRenderDelay;
     }
 
+    /**
+     * Current render and capture delay estimates, smoothed and as last
+     * measured, and whether they come from device timestamps.
+     */
+    public JSONObject getStats() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("render", renderDelay.toJson().put("sampleRate", outputSamplingRate));
+        result.put("capture", captureDelay.toJson()
+                .put("sampleRate", recordSamplingRate)
+                .put("resampledTo", captureResampler != null ? captureSamplingRate : recordSamplingRate));
+        return result;
+    }
+
     @Override
     public boolean startRenderer() {
         Timber.d("AUDIO_FOCUS", "Start Renderer");
@@ -796,10 +1022,8 @@ class AdvancedAudioDevice extends BaseAudioDevice {
             throw new RuntimeException(e.getMessage());
         }
 
-        rendererLock.lock();
-        isRendering = true;
-        renderEvent.signal();
-        rendererLock.unlock();
+        renderDelay.reset();
+        renderState.start();
         registerBtReceiver();
         registerHeadsetReceiver();
         return true;
@@ -813,7 +1037,8 @@ class AdvancedAudioDevice extends BaseAudioDevice {
             throw new IllegalStateException("stopRenderer(): stop() called on uninitialized AudioTrack");
         }
 
-        rendererLock.lock();
+        // Let the thread finish the write in progress first.
+        renderState.stop();
 
         try {
             // Only stop if we are playing.
@@ -824,10 +1049,9 @@ class AdvancedAudioDevice extends BaseAudioDevice {
             audioTrack.flush();
         } catch (Exception e) {
             throw new RuntimeException(e.getMessage());
-        } finally {
-            isRendering = false;
-            rendererLock.unlock();
         }
+        // the flush sets the playback position back to zero
+        framesWritten = 0;
         audioManagerMode.releaseMode(audioManager);
 
         unregisterHeadsetReceiver();
@@ -836,6 +1060,7 @@ class AdvancedAudioDevice extends BaseAudioDevice {
     }
 
     private Runnable renderThread = () -> {
+        AudioLoopState state = renderState;
         int samplesToPlay = samplesPerBuffer;
         try {
             android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
@@ -843,66 +1068,81 @@ class AdvancedAudioDevice extends BaseAudioDevice {
             Timber.e("android.os.Process.setThreadPriority(): " + e.getMessage());
         }
 
-        while (!shutdownRenderThread) {
-            rendererLock.lock();
-            try {
-                if (!this.isRendering) {
-                    renderEvent.await();
-                    continue;
-
-                } else {
-                    rendererLock.unlock();
+        while (state.awaitRunning()) {
+            // only released after this thread has exited
+            AudioTrack track = audioTrack;
+            if (track == null) {
+                break;
+            }
 
-                    // Don't lock on audioBus calls
-                    playBuffer.clear();
-                    int samplesRead = getAudioBus().readRenderData(playBuffer, samplesToPlay);
+            playBuffer.clear();
+            int samplesRead = getAudioBus().readRenderData(playBuffer, samplesToPlay);
 
-                    rendererLock.lock();
+            // A stop requested meanwhile is waiting for us; drop the chunk
+            // rather than write to a track that is about to stop.
+            if (!state.isRunning()) {
+                continue;
+            }
 
-                    // After acquiring the lock again we must check if we are still playing
-                    if (audioTrack == null || !this.isRendering) {
-                        continue;
-                    }
+            int bytesRead = (samplesRead << 1) * NUM_CHANNELS_RENDERING;
+            playBuffer.position(0);
+            playBuffer.limit(bytesRead);
+
+            // Write straight from the buffer the audio bus filled; the
+            // track advances its position. A blocking write can come
+            // back short if the track is paused, so retry the rest and
+            // drop it once the track takes nothing.
+            int bytesWritten = 0;
+            while (playBuffer.hasRemaining()) {
+                int result = track.write(playBuffer, playBuffer.remaining(), AudioTrack.WRITE_BLOCKING);
+                if (result <= 0) {
+                    bytesWritten = bytesWritten > 0 ? bytesWritten : result;
+                    break;
+                }
+                bytesWritten += result;
+            }
 
-                    int bytesRead = (samplesRead << 1) * NUM_CHANNELS_RENDERING;
-                    playBuffer.get(tempBufPlay, 0, bytesRead);
+            if (tuneRenderBuffer) {
+                tuneRenderBufferSize(track);
+            }
 
-                    int bytesWritten = audioTrack.write(tempBufPlay, 0, bytesRead);
+            if (bytesWritten > 0) {
+                // increase by number of written samples
+                int samplesWritten = (bytesWritten >> 1) / NUM_CHANNELS_RENDERING;
+                bufferedPlaySamples += samplesWritten;
+                framesWritten += samplesWritten;
 
-                    if (bytesWritten > 0) {
-                        // increase by number of written samples
-                        bufferedPlaySamples += (bytesWritten >> 1) / NUM_CHANNELS_RENDERING;
+                // decrease by number of played samples
+                int pos = track.getPlaybackHeadPosition();
 
-                        // decrease by number of played samples
-                        int pos = audioTrack.getPlaybackHeadPosition();
+                if (pos < playPosition) {
+                    // wrap or reset by driver
+                    playPosition = 0;
+                }
 
-                        if (pos < playPosition) {
-                            // wrap or reset by driver
-                            playPosition = 0;
-                        }
+                bufferedPlaySamples -= (pos - playPosition);
+                playPosition = pos;
 
-                        bufferedPlaySamples -= (pos - playPosition);
-                        playPosition = pos;
-
-                        // we calculate the estimated delay based on the buffered samples
-                        estimatedRenderDelay = bufferedPlaySamples * 1000 / outputSamplingRate;
-                    } else {
-                        switch (bytesWritten) {
-                            case AudioTrack.ERROR_BAD_VALUE:
-                                throw new RuntimeException("renderThread(): AudioTrack.ERROR_BAD_VALUE");
-                            case AudioTrack.ERROR_INVALID_OPERATION:
-                                throw new RuntimeException("renderThread(): AudioTrack.ERROR_INVALID_OPERATION");
-                            case AudioTrack.ERROR:
-                            default:
-                                throw new RuntimeException(
-                                        "renderThread(): AudioTrack.ERROR or default");
-                        }
-                    }
+                // Prefer the time the device reports for a recent frame;
+                // otherwise base the delay on the buffered samples.
+                long now = System.nanoTime();
+                if (renderDelay.timestampDue(now)) {
+                    renderDelay.timestampPolled(now, track.getTimestamp(renderDelay.timestamp));
+                }
+                estimatedRenderDelay = renderDelay.update(
+                        renderDelay.msUntilFrame(framesWritten, now, outputSamplingRate),
+                        bufferedPlaySamples * 1000.0 / outputSamplingRate);
+            } else if (bytesWritten < 0) {
+                switch (bytesWritten) {
+                    case AudioTrack.ERROR_BAD_VALUE:
+                        throw new RuntimeException("renderThread(): AudioTrack.ERROR_BAD_VALUE");
+                    case AudioTrack.ERROR_INVALID_OPERATION:
+                        throw new RuntimeException("renderThread(): AudioTrack.ERROR_INVALID_OPERATION");
+                    case AudioTrack.ERROR:
+                    default:
+                        throw new RuntimeException(
+                                "renderThread(): AudioTrack.ERROR or default");
                 }
-            } catch (Exception e) {
-                throw new RuntimeException(e.getMessage());
-            } finally {
-                rendererLock.unlock();
             }
         }
     };
@@ -1071,7 +1311,7 @@ class AdvancedAudioDevice extends BaseAudioDevice {
         }
 
         if (bluetoothState == BluetoothState.Disconnected) {
-            if (isRendering && (audioState.getLastOutputType() == OutputType.SPEAKER_PHONE)) {
+            if (renderState.isRunning() && (audioState.getLastOutputType() == OutputType.SPEAKER_PHONE)) {
                 if (!audioManager.isWiredHeadsetOn()) {
                     Timber.d("onResume() - Set Speaker Phone ON True");
                     audioManager.setSpeakerphoneOn(true);
@@ -0,0 +1,101 @@
+package com.tokbox.cordova;
+
+import android.media.AudioTimestamp;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Smoothed delay between the audio thread and the speaker or microphone,
+ * for one direction. Measured from the device's {@link AudioTimestamp},
+ * extrapolated to the current time, where the device reports one, and
+ * from the caller's own buffer accounting otherwise. One audio thread
+ * updates it, any thread may read the results.
+ */
+final class AudioDelayEstimator {
+
+    // Weight of a new measurement; about the last 10 writes or reads count.
+    private static final double SMOOTHING = 0.1;
+    // Polled often until the first timestamp arrives, then once a second:
+    // between polls extrapolation only drifts with the clocks, and a stale
+    // timestamp after an underrun is dropped by the plausibility check.
+    private static final long STARTUP_POLL_NS = 200000000L;
+    private static final long STEADY_POLL_NS = 1000000000L;
+    private static final double MAX_PLAUSIBLE_MS = 1000;
+
+    /** Filled in by the caller when {@link #timestampDue} says so. */
+    final AudioTimestamp timestamp = new AudioTimestamp();
+    private long polledNs;
+    private boolean hasTimestamp;
+    private boolean polled;
+
+    private double smoothedMs = -1;
+    private volatile int delayMs;
+    private volatile double measuredMs = -1;
+    private volatile boolean fromTimestamp;
+
+    /** Forgets timestamps and smoothing, for a restarted stream. */
+    void reset() {
+        polled = false;
+        hasTimestamp = false;
+        smoothedMs = -1;
+    }
+
+    boolean timestampDue(long nowNs) {
+        return !polled || nowNs - polledNs >= (hasTimestamp ? STEADY_POLL_NS : STARTUP_POLL_NS);
+    }
+
+    void timestampPolled(long nowNs, boolean success) {
+        polled = true;
+        polledNs = nowNs;
+        hasTimestamp = success;
+    }
+
+    /**
+     * Milliseconds until the device reaches {@code frame} of the stream,
+     * negative once it is past it, or NaN without a timestamp. Timestamps
+     * use the monotonic clock, like {@link System#nanoTime()}.
+     */
+    double msUntilFrame(long frame, long nowNs, int sampleRate) {
+        return (frame - framePositionAt(nowNs, sampleRate)) * 1000 / sampleRate;
+    }
+
+    /**
+     * Stream position of the device at {@code timeNs}, extrapolated from the
+     * last timestamp, or NaN without one.
+     */
+    double framePositionAt(long timeNs, int sampleRate) {
+        if (!hasTimestamp) {
+            return Double.NaN;
+        }
+        return timestamp.framePosition + (timeNs - timestamp.nanoTime) * sampleRate / 1e9;
+    }
+
+    /**
+     * Adds a measurement and returns the smoothed delay in milliseconds.
+     * The timestamp based one is used unless it is missing or implausible,
+     * as after a flush or an underrun, then {@code fallbackMs}.
+     */
+    int update(double timestampMs, double fallbackMs) {
+        boolean useTimestamp = timestampMs >= 0 && timestampMs <= MAX_PLAUSIBLE_MS;
+        double ms = useTimestamp ? timestampMs : fallbackMs;
+        // restart on a change of source rather than slide between the two
+        if (smoothedMs < 0 || useTimestamp != fromTimestamp) {
+            smoothedMs = ms;
+        } else {
+            smoothedMs += SMOOTHING * (ms - smoothedMs);
+        }
+        measuredMs = ms;
+        fromTimestamp = useTimestamp;
+        delayMs = (int) Math.round(smoothedMs);
+        return delayMs;
+    }
+
+    JSONObject toJson() throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("delayMs", delayMs);
+        result.put("measuredMs", measuredMs);
+        result.put("source", fromTimestamp ? "timestamp" : "buffer");
+        return result;
+    }
+}
@@ -0,0 +1,139 @@
+package com.tokbox.cordova;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Start, stop and shutdown signalling between the thread controlling an
+ * audio device and one audio I/O thread. The I/O thread never takes a lock:
+ * it parks while stopped and runs its blocking read or write with nothing
+ * held. Stopping waits until the I/O thread has finished its current
+ * transfer, so the AudioRecord or AudioTrack can then be stopped or
+ * released safely. Should the transfer not finish within the stop timeout,
+ * stopping gives up waiting and logs a warning.
+ */
+final class AudioLoopState {
+
+    /** Where warnings go; Timber on the device, anything in tests. */
+    interface Logger {
+        void warn(String message);
+    }
+
+    private static final int STOPPED = 0;
+    private static final int RUNNING = 1;
+    private static final int STOPPING = 2;
+    private static final int SHUTDOWN = 3;
+
+    // Stoppers other than the one the worker unparks check this often.
+    private static final long STOP_POLL_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final AtomicInteger state = new AtomicInteger(STOPPED);
+    private final Thread worker;
+    private final long stopTimeoutMs;
+    private final Logger logger;
+    private volatile Thread waiter;
+
+    /**
+     * @param worker the I/O thread, which calls {@link #awaitRunning()}
+     *               before each transfer; null for a placeholder
+     */
+    AudioLoopState(Thread worker, long stopTimeoutMs, Logger logger) {
+        this.worker = worker;
+        this.stopTimeoutMs = stopTimeoutMs;
+        this.logger = logger;
+    }
+
+    boolean isRunning() {
+        return state.get() == RUNNING;
+    }
+
+    void start() {
+        while (true) {
+            int current = state.get();
+            if (current == RUNNING || current == SHUTDOWN) {
+                return;
+            }
+            // A stop the worker has not acknowledged yet is simply undone.
+            if (state.compareAndSet(current, RUNNING)) {
+                if (worker != null) {
+                    LockSupport.unpark(worker);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns once the worker is parked outside a transfer, unless a start
+     * or shutdown came in meanwhile or the stop timeout ran out.
+     */
+    void stop() {
+        while (true) {
+            int current = state.get();
+            if (current == STOPPED || current == SHUTDOWN) {
+                return;
+            }
+            if (current == STOPPING || state.compareAndSet(RUNNING, STOPPING)) {
+                break;
+            }
+        }
+        if (worker == null || worker == Thread.currentThread()) {
+            state.compareAndSet(STOPPING, STOPPED);
+            return;
+        }
+        waiter = Thread.currentThread();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(stopTimeoutMs);
+        while (state.get() == STOPPING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                logger.warn("audio thread did not acknowledge stop in time");
+                break;
+            }
+            LockSupport.parkNanos(this, Math.min(remaining, STOP_POLL_NS));
+        }
+        if (waiter == Thread.currentThread()) {
+            waiter = null;
+        }
+    }
+
+    // Ends the worker and waits for it to exit.
+    void shutdown() {
+        state.set(SHUTDOWN);
+        if (worker == null || worker == Thread.currentThread()) {
+            return;
+        }
+        LockSupport.unpark(worker);
+        try {
+            worker.join(stopTimeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Worker side, called before each transfer. Acknowledges stops and
+     * parks while stopped. Returns false once the worker should exit.
+     */
+    boolean awaitRunning() {
+        while (true) {
+            int current = state.get();
+            if (current == RUNNING) {
+                return true;
+            }
+            if (current == SHUTDOWN) {
+                return false;
+            }
+            if (current == STOPPING) {
+                if (state.compareAndSet(STOPPING, STOPPED)) {
+                    Thread w = waiter;
+                    if (w != null) {
+                        LockSupport.unpark(w);
+                    }
+                }
+                continue;
+            }
+            LockSupport.park(this);
+        }
+    }
+}
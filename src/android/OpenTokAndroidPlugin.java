@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.cordova.CordovaInterface;
@@ -156,11 +157,25 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
     private static final String ACTION_SUBSCRIBE_TO_VIDEO = "subscribeToVideo";
     private static final String ACTION_UPDATE_VIEW = "updateView";
     private static final String ACTION_GET_IMG_DATA = "getImgData";
+    private static final String ACTION_SET_STYLE = "setStyle";
+    private static final String ACTION_GET_RENDERER_STATS = "getRendererStats";
+    private static final String ACTION_GET_AUDIO_STATS = "getAudioStats";
     private static final String ACTION_EXCEPTION_HANDLER = "exceptionHandler";
     private static final String ACTION_GET_OVERLAY_STATE = "getOverlayState";
     private static final String ACTION_SET_MINIMIZED = "setMinimized";
     private static final String ACTION_SET_SHARED_EVENT_LISTENER = "setSharedEventListener";
 
+    // config.xml preferences
+    private static final String PREF_PACKED_I420_TEXTURES = "OpenTokPackedI420Textures";
+    private static final String PREF_SHARED_COMPOSITOR = "OpenTokSharedVideoCompositor";
+    private static final String PREF_VSYNC_RENDERING = "OpenTokVsyncRendering";
+    private static final String PREF_UNSUBSCRIBE_HIDDEN_VIDEO = "OpenTokUnsubscribeHiddenVideo";
+    private static final String PREF_FAST_RESUME = "OpenTokFastResume";
+    private static final String PREF_LOW_LATENCY_AUDIO = "OpenTokLowLatencyAudio";
+
+    // how long a subscriber view stays hidden before its video is unsubscribed
+    private static final long HIDDEN_VIDEO_GRACE_MS = 3000;
+
     private String sessionId;
     private String apiKey;
     protected Session mSession;
@@ -188,10 +203,21 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
         return mInstance;
     }
 
+    private OpenTokCustomVideoRenderer createVideoRenderer() {
+        OpenTokCustomVideoRenderer renderer = new OpenTokCustomVideoRenderer(cordova.getActivity().getApplicationContext(),
+                preferences.getBoolean(PREF_SHARED_COMPOSITOR, false));
+        renderer.setPackedTextures(preferences.getBoolean(PREF_PACKED_I420_TEXTURES, false));
+        renderer.setVsyncAligned(preferences.getBoolean(PREF_VSYNC_RENDERING, false));
+        renderer.setFastResume(preferences.getBoolean(PREF_FAST_RESUME, false));
+        return renderer;
+    }
+
     public class RunnableUpdateViews implements Runnable {
         public JSONArray mProperty;
         public View mView;
         public ArrayList<RunnableUpdateViews> allStreamViews;
+        // UI thread only
+        private boolean mHidden = false;
 
         public class CustomComparator implements Comparator<RunnableUpdateViews> {
             @Override
@@ -229,6 +255,70 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
                     }
                 }
             }
+
+            // Moving one view can uncover another, so check them all.
+            for (int i = 0; i < allStreamViews.size(); i++) {
+                allStreamViews.get(i).updateHidden(allStreamViews, i);
+            }
+        }
+
+        void updateHidden(List<RunnableUpdateViews> views, int index) {
+            boolean hidden = isHidden(views, index);
+            if (hidden != mHidden) {
+                mHidden = hidden;
+                Timber.i("stream view " + (hidden ? "hidden" : "visible again"));
+                onHiddenChanged(hidden);
+            }
+        }
+
+        // A view is hidden when it has no area, lies outside its parent, is
+        // not visible, or is entirely covered by a stream view drawn above
+        // it. Web content drawn over a video is not known here.
+        private boolean isHidden(List<RunnableUpdateViews> views, int index) {
+            float[] bounds = getBounds();
+            if (bounds == null || mView.getVisibility() != View.VISIBLE) {
+                return true;
+            }
+            if (mView.getParent() instanceof View) {
+                View parent = (View) mView.getParent();
+                if (parent.getWidth() > 0 && parent.getHeight() > 0
+                        && (bounds[2] <= 0 || bounds[3] <= 0
+                        || bounds[0] >= parent.getWidth() || bounds[1] >= parent.getHeight())) {
+                    return true;
+                }
+            }
+            for (int j = index + 1; j < views.size(); j++) {
+                RunnableUpdateViews above = views.get(j);
+                // equal z-indices only stack reliably for the topmost view
+                if (above.getZIndex() == getZIndex() && j != views.size() - 1) {
+                    continue;
+                }
+                float[] other = above.getBounds();
+                if (other != null && above.mView.getVisibility() == View.VISIBLE
+                        && other[0] <= bounds[0] && other[1] <= bounds[1]
+                        && other[2] >= bounds[2] && other[3] >= bounds[3]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // {left, top, right, bottom} as last positioned, null without area.
+        private float[] getBounds() {
+            if (mView == null) {
+                return null;
+            }
+            ViewGroup.LayoutParams params = mView.getLayoutParams();
+            if (params == null || params.width <= 0 || params.height <= 0) {
+                return null;
+            }
+            float left = mView.getX();
+            float top = mView.getY();
+            return new float[]{left, top, left + params.width, top + params.height};
+        }
+
+        // Called on the UI thread when the view becomes hidden or visible.
+        protected void onHiddenChanged(boolean hidden) {
         }
 
         public int getZIndex() {
@@ -334,7 +424,7 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
                     .audioBitrate(audioBitrate)
                     .frameRate(Publisher.CameraCaptureFrameRate.valueOf(frameRate))
                     .resolution(Publisher.CameraCaptureResolution.valueOf(resolution))
-                    .renderer(new OpenTokCustomVideoRenderer(cordova.getActivity().getApplicationContext()))
+                    .renderer(createVideoRenderer())
                     .build();
             mPublisher.setCameraListener(this);
             mPublisher.setPublisherListener(this);
@@ -385,8 +475,22 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
             }
         }
 
-        public void getImgData(CallbackContext callbackContext) {
-            ((OpenTokCustomVideoRenderer) mPublisher.getRenderer()).getSnapshot(callbackContext);
+        public void getImgData(CallbackContext callbackContext, SnapshotOptions options) {
+            ((OpenTokCustomVideoRenderer) mPublisher.getRenderer()).getSnapshot(callbackContext, options);
+        }
+
+        public void setStyle(String key, String value) {
+            if (mPublisher != null) {
+                mPublisher.setStyle(key, value);
+            }
+        }
+
+        // Only the self view stops; the stream keeps being published.
+        @Override
+        protected void onHiddenChanged(boolean hidden) {
+            if (mPublisher != null) {
+                ((OpenTokCustomVideoRenderer) mPublisher.getRenderer()).setRenderingPaused(hidden);
+            }
         }
 
         public void run() {
@@ -468,6 +572,22 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
         //  property contains: [stream.streamId, position.top, position.left, width, height, subscribeToVideo, zIndex] )
         public Subscriber mSubscriber;
         public Stream mStream;
+        // Video as last requested by JS, and whether it is currently off
+        // only because the view is hidden. Guarded by this.
+        private boolean mVideoRequested = true;
+        private boolean mVideoOffWhileHidden = false;
+        private final boolean mUnsubscribeHiddenVideo = preferences.getBoolean(PREF_UNSUBSCRIBE_HIDDEN_VIDEO, false);
+        private final Runnable mHiddenVideoTimeout = new Runnable() {
+            public void run() {
+                synchronized (RunnableSubscriber.this) {
+                    if (mVideoRequested && !mVideoOffWhileHidden) {
+                        Timber.i("subscriber view hidden, unsubscribing from video");
+                        mVideoOffWhileHidden = true;
+                        mSubscriber.setSubscribeToVideo(false);
+                    }
+                }
+            }
+        };
 
         public RunnableSubscriber(JSONArray args, Stream stream) {
             this.mProperty = args;
@@ -475,7 +595,7 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
 
             logMessage("NEW SUBSCRIBER BEING CREATED");
             mSubscriber = new Subscriber.Builder(cordova.getActivity().getApplicationContext(), mStream)
-                    .renderer(new OpenTokCustomVideoRenderer(cordova.getActivity().getApplicationContext()))
+                    .renderer(createVideoRenderer())
                     .build();
             Timber.d("When New Subscriber Created Get audio volume--> " + mSubscriber.getAudioVolume());
             mSubscriber.setAudioVolume(100);
@@ -496,6 +616,7 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
             cordova.getActivity().runOnUiThread(
                 new Runnable() {
                     public void run() {
+                        mView.removeCallbacks(mHiddenVideoTimeout);
                         ViewGroup parent = (ViewGroup) webView.getView().getParent();
                         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
                             // removeView() will crash the app when a call ends on an Android version less than 9.
@@ -531,8 +652,8 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
             super.run();
         }
 
-        public void getImgData(CallbackContext callbackContext) {
-            ((OpenTokCustomVideoRenderer) mSubscriber.getRenderer()).getSnapshot(callbackContext);
+        public void getImgData(CallbackContext callbackContext, SnapshotOptions options) {
+            ((OpenTokCustomVideoRenderer) mSubscriber.getRenderer()).getSnapshot(callbackContext, options);
         }
 
         @Override
@@ -631,9 +752,37 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
             mSubscriber.setSubscribeToAudio(value);
         }
 
-        public void subscribeToVideo(boolean value) {
+        public synchronized void subscribeToVideo(boolean value) {
+            mVideoRequested = value;
+            mVideoOffWhileHidden = false;
             mSubscriber.setSubscribeToVideo(value);
         }
+
+        public void setStyle(String key, String value) {
+            mSubscriber.setStyle(key, value);
+        }
+
+        // Rendering stops at once. Decoding stops, if enabled, only after a
+        // grace period so brief layout changes do not renegotiate video.
+        @Override
+        protected void onHiddenChanged(boolean hidden) {
+            ((OpenTokCustomVideoRenderer) mSubscriber.getRenderer()).setRenderingPaused(hidden);
+            if (!mUnsubscribeHiddenVideo) {
+                return;
+            }
+            mView.removeCallbacks(mHiddenVideoTimeout);
+            if (hidden) {
+                mView.postDelayed(mHiddenVideoTimeout, HIDDEN_VIDEO_GRACE_MS);
+                return;
+            }
+            synchronized (this) {
+                if (mVideoOffWhileHidden) {
+                    Timber.i("subscriber view visible again, resubscribing to video");
+                    mVideoOffWhileHidden = false;
+                    mSubscriber.setSubscribeToVideo(true);
+                }
+            }
+        }
     }
 
     @Override
@@ -675,7 +824,8 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
         boolean isCustomAudioDriverSet = AudioDeviceManager.getAudioDevice() instanceof AdvancedAudioDevice;
         Timber.d("is Custom Audio Driver Set --> " + isCustomAudioDriverSet);
         if (deviceName!=null && deviceName.contains("A7 Lite") && !isCustomAudioDriverSet) {
-            AdvancedAudioDevice advancedAudioDevice = new AdvancedAudioDevice(cordova.getContext());
+            AdvancedAudioDevice advancedAudioDevice = new AdvancedAudioDevice(cordova.getContext(),
+                    preferences.getBoolean(PREF_LOW_LATENCY_AUDIO, false));
             AudioDeviceManager.setAudioDevice(advancedAudioDevice);
             Timber.d("For A7 lite, setting custom audio driver");
         }
@@ -838,11 +988,52 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
                     cordova.getActivity().runOnUiThread(runsub);
                 }
             }
+        } else if (ACTION_GET_RENDERER_STATS.equals(action)) {
+            OpenTokCustomVideoRenderer renderer = null;
+            if (args.getString(0).equals("TBPublisher")) {
+                if (myPublisher != null && myPublisher.mPublisher != null) {
+                    renderer = (OpenTokCustomVideoRenderer) myPublisher.mPublisher.getRenderer();
+                }
+            } else {
+                RunnableSubscriber runsub = subscriberCollection.get(args.getString(0));
+                if (runsub != null) {
+                    renderer = (OpenTokCustomVideoRenderer) runsub.mSubscriber.getRenderer();
+                }
+            }
+            if (renderer == null) {
+                callbackContext.error("No video renderer for " + args.getString(0));
+            } else {
+                callbackContext.success(renderer.getStats());
+            }
+            return true;
+        } else if (ACTION_GET_AUDIO_STATS.equals(action)) {
+            if (AudioDeviceManager.getAudioDevice() instanceof AdvancedAudioDevice) {
+                callbackContext.success(((AdvancedAudioDevice) AudioDeviceManager.getAudioDevice()).getStats());
+            } else {
+                callbackContext.error("Audio stats need the custom audio driver");
+            }
+            return true;
+        } else if (ACTION_SET_STYLE.equals(action)) {
+            String key = args.getString(1);
+            String value = args.getString(2);
+            if (args.getString(0).equals("TBPublisher")) {
+                if (myPublisher != null) {
+                    myPublisher.setStyle(key, value);
+                }
+            } else {
+                RunnableSubscriber runsub = subscriberCollection.get(args.getString(0));
+                if (runsub != null) {
+                    runsub.setStyle(key, value);
+                }
+            }
+            callbackContext.success();
+            return true;
         } else if (ACTION_GET_IMG_DATA.equals(action)) {
+            SnapshotOptions snapshotOptions = SnapshotOptions.fromJson(args.optJSONObject(1));
             if (args.getString(0).equals("TBPublisher") && myPublisher != null && sessionConnected) {
                 cordova.getThreadPool().execute(new Runnable() {
                     public void run() {
-                      myPublisher.getImgData(callbackContext);
+                      myPublisher.getImgData(callbackContext, snapshotOptions);
                     }
                 });
                 return true;
@@ -851,10 +1042,9 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
                 if (runsub != null) {
                   cordova.getThreadPool().execute(new Runnable() {
                       public void run() {
-                         runsub.getImgData(callbackContext);
+                         runsub.getImgData(callbackContext, snapshotOptions);
                       }
                   });
-                  runsub.getImgData(callbackContext);
                   return true;
                 }
             }
@@ -1317,6 +1507,21 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
         return connection;
     }
 
+    // Frame rate measured by the stream's renderer, -999 while it has none.
+    private double getReceivedFps(Stream stream) {
+        OpenTokCustomVideoRenderer renderer = null;
+        RunnableSubscriber runsub = subscriberCollection.get(stream.getStreamId());
+        if (runsub != null && runsub.mSubscriber != null) {
+            renderer = (OpenTokCustomVideoRenderer) runsub.mSubscriber.getRenderer();
+        } else if (myPublisher != null && myPublisher.mPublisher != null
+                && myPublisher.mPublisher.getStream() != null
+                && stream.getStreamId().equals(myPublisher.mPublisher.getStream().getStreamId())) {
+            renderer = (OpenTokCustomVideoRenderer) myPublisher.mPublisher.getRenderer();
+        }
+        double fps = renderer != null ? renderer.getReceivedFps() : -1;
+        return fps < 0 ? -999 : fps;
+    }
+
     public JSONObject createDataFromStream(Stream arg1) {
         JSONObject result = new JSONObject();
         try {
@@ -1326,7 +1531,7 @@ public class OpenTokAndroidPlugin extends CordovaPlugin
                 result.put(DATA_KEY_CONNECTION, createDataFromConnection(connection));
             }
             result.put(DATA_KEY_CREATION_TIME, arg1.getCreationTime());
-            result.put(DATA_KEY_FPS, -999);
+            result.put(DATA_KEY_FPS, getReceivedFps(arg1));
             result.put(DATA_KEY_HAS_AUDIO, arg1.hasAudio());
             result.put(DATA_KEY_HAS_VIDEO, arg1.hasVideo());
 
@@ -1,25 +1,37 @@
 package com.tokbox.cordova;
 
+import android.app.ActivityManager;
 import android.content.Context;
-import android.graphics.Bitmap;
+import android.content.pm.ConfigurationInfo;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.os.AsyncTask;
 import android.telecom.Call;
-import android.util.Base64;
 import android.view.View;
 
 import com.opentok.android.BaseVideoRenderer;
 
 import org.apache.cordova.CallbackContext;
-import org.apache.cordova.PluginResult;
+import org.json.JSONException;
+import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.microedition.khronos.egl.EGLConfig;
@@ -31,25 +43,47 @@ public class OpenTokCustomVideoRenderer extends BaseVideoRenderer {
     private Context mContext;
     private GLSurfaceView mView;
     private MyRenderer mRenderer;
+    // compositor mode: a placeholder positioned by the plugin instead of mView
+    private View mPlaceholder;
+    private volatile VideoCompositor mCompositor;
+
+    /** setStyle key capping how often the view redraws, in frames per second. */
+    public static final String STYLE_MAX_FPS = "maxFps";
+
+    // 0 when uncapped; the rest is only touched on the SDK's frame thread
+    private volatile long mMinFrameIntervalNs = 0;
+    private long mNextFrameNs;
+    private final AtomicLong mDecimatedFrames = new AtomicLong();
+    // null unless renders are aligned to vsync
+    private volatile VsyncRenderScheduler mVsyncScheduler;
 
     static class MyRenderer implements GLSurfaceView.Renderer {
 
         int mTextureIds[] = new int[3];
+        private final TextureCache mTextureCache = new TextureCache();
+        // two pixel unpack buffers used alternately on ES 3.0 contexts
+        int mPixelBuffers[] = new int[2];
+        private int mPixelBufferIndex;
+        private int mPixelBufferSize;
+        // set by the view when it asked for an ES 3.0 context
+        boolean mPixelBuffersAllowed = false;
+        private boolean mUsePixelBuffers = false;
         float[] mScaleMatrix = new float[16];
+        float[] mSnapshotMatrix = new float[16];
 
         private FloatBuffer mVertexBuffer;
         private FloatBuffer mTextureBuffer;
         private ShortBuffer mDrawListBuffer;
 
 
-        private Boolean mSaveScreenshot = false;
-
         boolean mVideoFitEnabled = true;
-        boolean mVideoDisabled = false;
+        volatile boolean mVideoDisabled = false;
 
 
         // number of coordinates per vertex in this array
         static final int COORDS_PER_VERTEX = 3;
+        // extra time given to a burst's last frame before it is cut off
+        static final long BURST_GRACE_MS = 250;
         static final int TEXTURECOORDS_PER_VERTEX = 2;
 
         static float mXYZCoords[] = {-1.0f, 1.0f, 0.0f, // top left
@@ -93,16 +127,125 @@ public class OpenTokCustomVideoRenderer extends BaseVideoRenderer {
                 + "  g=y-0.39173*u-0.81290*v;\n" + "  b=y+2.017*u;\n"
                 + "  gl_FragColor=vec4(r,g,b,1.0);\n" + "}\n";
 
-        ReentrantLock mFrameLock = new ReentrantLock();
-        Frame mCurrentFrame;
+        // Alternative layout: the whole I420 buffer in one texture that is
+        // width wide and height + chroma height tall. Y fills the top rows;
+        // below it each texture row holds two chroma rows (even on the left,
+        // odd on the right), first for U then for V. Sampled with NEAREST
+        // so neighbouring planes never blend, and interpolated here within
+        // each plane like the LINEAR planar textures.
+        private final String packedFragmentShaderCode = "precision highp float;\n"
+                + "uniform sampler2D Ytex;\n"
+                + "uniform vec2 uFrameSize;\n"
+                + "uniform vec2 uTexSize;\n"
+                + "varying vec2 vTextureCoord;\n"
+                + "float texel(vec2 q) {\n"
+                + "  return texture2D(Ytex,(q+0.5)/uTexSize).r;\n"
+                + "}\n"
+                // texel c of the U (plane 0) or V (plane = its row offset) plane
+                + "float chroma(vec2 c,float plane) {\n"
+                + "  return texel(vec2(c.x+mod(c.y,2.0)*uFrameSize.x*0.5,"
+                + "uFrameSize.y+plane+floor(c.y*0.5)));\n"
+                + "}\n"
+                // bilinear, clamped to the plane's edges; p in texel units
+                + "float lumaAt(vec2 p) {\n"
+                + "  vec2 i=floor(p),w=p-i,hi=uFrameSize-1.0;\n"
+                + "  vec2 a=clamp(i,vec2(0.0),hi),b=clamp(i+1.0,vec2(0.0),hi);\n"
+                + "  return mix(mix(texel(a),texel(vec2(b.x,a.y)),w.x),"
+                + "mix(texel(vec2(a.x,b.y)),texel(b),w.x),w.y);\n"
+                + "}\n"
+                + "float chromaAt(vec2 p,vec2 size,float plane) {\n"
+                + "  vec2 i=floor(p),w=p-i,hi=size-1.0;\n"
+                + "  vec2 a=clamp(i,vec2(0.0),hi),b=clamp(i+1.0,vec2(0.0),hi);\n"
+                + "  return mix(mix(chroma(a,plane),chroma(vec2(b.x,a.y),plane),w.x),"
+                + "mix(chroma(vec2(a.x,b.y),plane),chroma(b,plane),w.x),w.y);\n"
+                + "}\n"
+                + "void main(void) {\n"
+                + "  float r,g,b,y,u,v,vOffset;\n"
+                + "  vec2 cSize,c;\n"
+                + "  vOffset=(uTexSize.y-uFrameSize.y)*0.5;\n"
+                + "  cSize=vec2(uFrameSize.x*0.5,vOffset*2.0);\n"
+                + "  c=vTextureCoord*cSize-0.5;\n"
+                + "  y=lumaAt(vTextureCoord*uFrameSize-0.5);\n"
+                + "  u=chromaAt(c,cSize,0.0);\n"
+                + "  v=chromaAt(c,cSize,vOffset);\n"
+                + "  y=1.1643*(y-0.0625);\n"
+                + "  u=u-0.5;\n" + "  v=v-0.5;\n" + "  r=y+1.5958*v;\n"
+                + "  g=y-0.39173*u-0.81290*v;\n" + "  b=y+2.017*u;\n"
+                + "  gl_FragColor=vec4(r,g,b,1.0);\n" + "}\n";
+
+        // Frames move from the SDK thread to the GL thread through
+        // mPendingFrame without locking. The producer swaps in every new
+        // frame; a frame still waiting there when the next one arrives was
+        // never drawn and is counted as superseded. The GL thread takes the
+        // newest frame into mDrawFrame, which only it touches.
+        private final AtomicReference<SharedFrame> mPendingFrame = new AtomicReference<>();
+        private SharedFrame mDrawFrame;
+        private boolean mDrawFrameUploaded;
+        // newest frame received, for snapshots taken from any thread
+        private final AtomicReference<SharedFrame> mLatestFrame = new AtomicReference<>();
+        private final AtomicLong mSupersededFrames = new AtomicLong();
+        final RendererStats mStats = new RendererStats();
+        // last frame counted as rendered, compared by identity only; GL thread
+        private SharedFrame mLastDrawnFrame;
+
+        // Set while the view is hidden: frames are kept for snapshots but
+        // not handed to the GL thread.
+        private volatile boolean mDrawingPaused = false;
+
+        // Copy of the last frame, only held while video is disabled.
+        private volatile RetainedFrame mRetainedFrame;
+
+        static final class RetainedFrame {
+            final byte[] yuv;
+            final int width;
+            final int height;
+            // snapshots being encoded from this copy, see SnapshotGroup
+            final HashMap<SnapshotOptions, SnapshotGroup> snapshots = new HashMap<>();
+
+            RetainedFrame(byte[] yuv, int width, int height) {
+                this.yuv = yuv;
+                this.width = width;
+                this.height = height;
+            }
+        }
+
+        // Guards the snapshot bookkeeping below; never taken by the GL thread.
+        private final ReentrantLock mSnapshotLock = new ReentrantLock();
+        // lets displayFrame skip mSnapshotLock when nothing is waiting
+        private volatile boolean mSnapshotsWaiting = false;
 
         private int mProgram;
+        // set from the view, takes effect when the surface is created
+        volatile boolean mPackedTexturesRequested = false;
+        private int mPackedProgram;
+        // false when the programs are the compositor's, see useSharedPrograms
+        private boolean mOwnsPrograms = true;
+        private int mPackedTexture;
+        private int mPackedWidth;
+        private int mPackedHeight;
+        private boolean mPackedActive;
         private int mTextureWidth;
         private int mTextureHeight;
+        private int mViewportX;
+        private int mViewportY;
         private int mViewportWidth;
         private int mViewportHeight;
-
-        private CallbackContext mCallbackContext;
+        private int mPositionHandle;
+        private int mTextureHandle;
+        // Set when drawn by VideoCompositor, whose context is shared with
+        // other streams' renderers that rebind their own state in between.
+        volatile boolean mSharedContext = false;
+
+        // Snapshot requests waiting for the next frame, guarded by
+        // mSnapshotLock. Requests with equal options share one encode.
+        private final LinkedHashMap<SnapshotOptions, List<CallbackContext>> mPendingSnapshots = new LinkedHashMap<>();
+        private long mCoalescedSnapshots;
+        // running burst captures, guarded by mSnapshotLock
+        private final ArrayList<SnapshotBurst> mBursts = new ArrayList<>();
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        File mSnapshotDirectory;
+        volatile GLSurfaceView mView;
+        private volatile boolean mSurfaceReady = false;
 
         public MyRenderer() {
             ByteBuffer bb = ByteBuffer.allocateDirect(mXYZCoords.length * 4);
@@ -126,52 +269,296 @@ public class OpenTokCustomVideoRenderer extends BaseVideoRenderer {
 
         @Override
         public void onSurfaceCreated(GL10 gl, EGLConfig config) {
-            gl.glClearColor(0, 0, 0, 1);
+            GLES20.glClearColor(0, 0, 0, 1);
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
+            int[] programs = createPrograms(mPackedTexturesRequested);
+            mOwnsPrograms = true;
+            useContext(programs[0], programs[1]);
+        }
+
+        /**
+         * Shared context only: draws with programs the compositor compiled
+         * once for every stream, so this renderer only holds its textures.
+         */
+        void useSharedPrograms(int program, int packedProgram) {
+            mOwnsPrograms = false;
+            useContext(program, mPackedTexturesRequested ? packedProgram : 0);
+        }
+
+        /**
+         * Compiles the planar program and, when {@code packed} is set and the
+         * GPU supports it, the packed layout one. Returns {planar, packed},
+         * packed being 0 when not available.
+         */
+        int[] createPrograms(boolean packed) {
             int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER,
                     vertexShaderCode);
             int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER,
                     fragmentShaderCode);
 
-            mProgram = GLES20.glCreateProgram(); // create empty OpenGL ES
+            int program = GLES20.glCreateProgram(); // create empty OpenGL ES
             // Program
-            GLES20.glAttachShader(mProgram, vertexShader); // add the vertex
+            GLES20.glAttachShader(program, vertexShader); // add the vertex
             // shader to program
-            GLES20.glAttachShader(mProgram, fragmentShader); // add the fragment
+            GLES20.glAttachShader(program, fragmentShader); // add the fragment
             // shader to
             // program
-            GLES20.glLinkProgram(mProgram);
+            GLES20.glLinkProgram(program);
+
+            GLES20.glUseProgram(program);
+            int i = GLES20.glGetUniformLocation(program, "Ytex");
+            GLES20.glUniform1i(i, 0); /* Bind Ytex to texture unit 0 */
+
+            i = GLES20.glGetUniformLocation(program, "Utex");
+            GLES20.glUniform1i(i, 1); /* Bind Utex to texture unit 1 */
+
+            i = GLES20.glGetUniformLocation(program, "Vtex");
+            GLES20.glUniform1i(i, 2); /* Bind Vtex to texture unit 2 */
+
+            int packedProgram = packed ? createPackedProgram(vertexShader,
+                    GLES20.glGetAttribLocation(program, "aPosition"),
+                    GLES20.glGetAttribLocation(program, "aTextureCoord")) : 0;
+            GLES20.glUseProgram(program);
+            return new int[]{program, packedProgram};
+        }
 
-            int positionHandle = GLES20.glGetAttribLocation(mProgram,
+        // Starts drawing into a new context with the given programs.
+        private void useContext(int program, int packedProgram) {
+            mProgram = program;
+            mPositionHandle = GLES20.glGetAttribLocation(mProgram,
                     "aPosition");
-            int textureHandle = GLES20.glGetAttribLocation(mProgram,
+            mTextureHandle = GLES20.glGetAttribLocation(mProgram,
                     "aTextureCoord");
+            bindVertexArrays();
+            GLES20.glUseProgram(mProgram);
+
+            mTextureWidth = 0;
+            mTextureHeight = 0;
+
+            // Textures of a previous context are gone with it.
+            mTextureCache.clear(false);
+            mPackedTexture = 0;
+            mPackedWidth = 0;
+            mPackedHeight = 0;
+            mPackedProgram = packedProgram;
+
+            // Buffers of a previous context are gone with it.
+            mPixelBuffers[0] = 0;
+            mPixelBuffers[1] = 0;
+            mPixelBufferSize = 0;
+            String version = GLES20.glGetString(GLES20.GL_VERSION);
+            mUsePixelBuffers = mPixelBuffersAllowed
+                    && version != null && version.startsWith("OpenGL ES 3");
+            Timber.d("GL version " + version + ", pixel buffer uploads " + mUsePixelBuffers);
+
+            mSurfaceReady = true;
+        }
 
-            GLES20.glVertexAttribPointer(positionHandle, COORDS_PER_VERTEX,
+        void bindVertexArrays() {
+            GLES20.glVertexAttribPointer(mPositionHandle, COORDS_PER_VERTEX,
                     GLES20.GL_FLOAT, false, COORDS_PER_VERTEX * 4,
                     mVertexBuffer);
 
-            GLES20.glEnableVertexAttribArray(positionHandle);
+            GLES20.glEnableVertexAttribArray(mPositionHandle);
 
-            GLES20.glVertexAttribPointer(textureHandle,
+            GLES20.glVertexAttribPointer(mTextureHandle,
                     TEXTURECOORDS_PER_VERTEX, GLES20.GL_FLOAT, false,
                     TEXTURECOORDS_PER_VERTEX * 4, mTextureBuffer);
 
-            GLES20.glEnableVertexAttribArray(textureHandle);
-
-            GLES20.glUseProgram(mProgram);
-            int i = GLES20.glGetUniformLocation(mProgram, "Ytex");
-            GLES20.glUniform1i(i, 0); /* Bind Ytex to texture unit 0 */
-
-            i = GLES20.glGetUniformLocation(mProgram, "Utex");
-            GLES20.glUniform1i(i, 1); /* Bind Utex to texture unit 1 */
+            GLES20.glEnableVertexAttribArray(mTextureHandle);
+        }
 
-            i = GLES20.glGetUniformLocation(mProgram, "Vtex");
-            GLES20.glUniform1i(i, 2); /* Bind Vtex to texture unit 2 */
+        // Shared context only: another stream drew since this renderer's
+        // last pass and left its own arrays, textures and, in the shared
+        // packed program, frame size bound.
+        private void bindSharedState(boolean packed) {
+            bindVertexArrays();
+            if (packed) {
+                setPackedUniforms();
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mPackedTexture);
+                return;
+            }
+            for (int i = 0; i < 3; i++) {
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureIds[i]);
+            }
+        }
 
+        /**
+         * Deletes everything this renderer created in a shared context. Runs
+         * on the compositor's GL thread after the stream is detached.
+         */
+        void releaseGl() {
+            mSurfaceReady = false;
+            mTextureCache.clear(true);
+            if (mPixelBuffers[0] != 0) {
+                GLES30.glDeleteBuffers(2, mPixelBuffers, 0);
+                mPixelBuffers[0] = 0;
+                mPixelBuffers[1] = 0;
+            }
+            // shared programs belong to the compositor
+            if (mOwnsPrograms && mPackedProgram != 0) {
+                GLES20.glDeleteProgram(mPackedProgram);
+            }
+            if (mOwnsPrograms && mProgram != 0) {
+                GLES20.glDeleteProgram(mProgram);
+            }
+            mPackedProgram = 0;
+            mProgram = 0;
             mTextureWidth = 0;
             mTextureHeight = 0;
+            mPackedWidth = 0;
+            mPackedHeight = 0;
+            releaseFrames();
+        }
+
+        /**
+         * Lets go of the frames held for drawing. Only from the GL thread,
+         * or once the GL thread that drew this renderer has exited.
+         */
+        void releaseFrames() {
+            if (mDrawFrame != null) {
+                mDrawFrame.release();
+                mDrawFrame = null;
+            }
+            mLastDrawnFrame = null;
+            SharedFrame pending = mPendingFrame.getAndSet(null);
+            if (pending != null) {
+                pending.release();
+            }
+        }
+
+        // Links the packed layout program with the same attribute slots as
+        // mProgram so the vertex arrays set up above serve both. Returns 0
+        // when the packed layout cannot be used on this GPU.
+        private int createPackedProgram(int vertexShader, int positionHandle, int textureHandle) {
+            int[] range = new int[2];
+            int[] precision = new int[1];
+            GLES20.glGetShaderPrecisionFormat(GLES20.GL_FRAGMENT_SHADER,
+                    GLES20.GL_HIGH_FLOAT, range, 0, precision, 0);
+            if (precision[0] == 0) {
+                // mediump cannot address texels of a 720p frame exactly
+                Timber.i("no highp in fragment shaders, using planar textures");
+                return 0;
+            }
+
+            int fragmentShader = loadShader(GLES20.GL_FRAGMENT_SHADER,
+                    packedFragmentShaderCode);
+            int program = GLES20.glCreateProgram();
+            GLES20.glAttachShader(program, vertexShader);
+            GLES20.glAttachShader(program, fragmentShader);
+            GLES20.glBindAttribLocation(program, positionHandle, "aPosition");
+            GLES20.glBindAttribLocation(program, textureHandle, "aTextureCoord");
+            GLES20.glLinkProgram(program);
+
+            int[] status = new int[1];
+            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+            if (status[0] == 0) {
+                Timber.w("packed texture program failed to link: " + GLES20.glGetProgramInfoLog(program));
+                GLES20.glDeleteProgram(program);
+                return 0;
+            }
+
+            GLES20.glUseProgram(program);
+            GLES20.glUniform1i(GLES20.glGetUniformLocation(program, "Ytex"), 0);
+            return program;
+        }
+
+        // The packed layout needs whole texture rows for each pair of
+        // chroma rows, i.e. an even width and an even chroma height.
+        static boolean canPack(int width, int height) {
+            return (width & 1) == 0 && (((height + 1) >> 1) & 1) == 0;
+        }
+
+        private void setPackedUniforms() {
+            GLES20.glUseProgram(mPackedProgram);
+            GLES20.glUniform2f(GLES20.glGetUniformLocation(mPackedProgram, "uFrameSize"),
+                    mPackedWidth, mPackedHeight);
+            GLES20.glUniform2f(GLES20.glGetUniformLocation(mPackedProgram, "uTexSize"),
+                    mPackedWidth, mPackedHeight + ((mPackedHeight + 1) >> 1));
+        }
+
+        void setupPackedTexture(Frame frame) {
+            int w = frame.getWidth();
+            int h = frame.getHeight();
+            int textureHeight = h + ((h + 1) >> 1);
+
+            int[] ids = mTextureCache.get(true, w, h);
+            if (ids == null) {
+                ids = new int[1];
+                GLES20.glGenTextures(1, ids, 0);
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, ids[0]);
+                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                        GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                        GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                        GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                        GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+                GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_LUMINANCE,
+                        w, textureHeight, 0, GLES20.GL_LUMINANCE,
+                        GLES20.GL_UNSIGNED_BYTE, null);
+                mTextureCache.put(true, w, h, ids, (long) w * textureHeight);
+            }
+            mPackedTexture = ids[0];
+
+            mPackedWidth = w;
+            mPackedHeight = h;
+            setPackedUniforms();
+            mDrawFrameUploaded = false;
+        }
+
+        // Picks the texture layout for frame, uploads the frame unless the
+        // textures already hold it, and returns the program to draw with,
+        // or 0 if the frame could not be uploaded.
+        int prepareTextures(Frame frame) {
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            boolean packed = mPackedProgram != 0 && canPack(width, height);
+            if (packed != mPackedActive) {
+                mPackedActive = packed;
+                mDrawFrameUploaded = false;
+                // The other layout's textures may be evicted from the cache
+                // while unused, so look them up again when switching back.
+                mTextureWidth = 0;
+                mTextureHeight = 0;
+                mPackedWidth = 0;
+                mPackedHeight = 0;
+            }
+
+            if (packed) {
+                if (mPackedWidth != width || mPackedHeight != height) {
+                    setupPackedTexture(frame);
+                }
+            } else if (mTextureWidth != width || mTextureHeight != height) {
+                setupTextures(frame);
+            }
+            // Redraws of the same frame reuse the textures.
+            if (!mDrawFrameUploaded) {
+                long start = System.nanoTime();
+                if (mUsePixelBuffers) {
+                    streamTextures(frame);
+                } else {
+                    updateTextures(frame);
+                }
+                mStats.textureUploaded(System.nanoTime() - start);
+                mDrawFrameUploaded = true;
+            }
+
+            int program;
+            if (packed) {
+                program = mPackedWidth == 0 ? 0 : mPackedProgram;
+            } else {
+                program = mTextureWidth == 0 ? 0 : mProgram;
+            }
+            if (program != 0 && mSharedContext) {
+                bindSharedState(packed);
+            }
+            return program;
         }
 
         static void initializeTexture(int name, int id, int width, int height) {
@@ -191,22 +578,27 @@ public class OpenTokCustomVideoRenderer extends BaseVideoRenderer {
         }
 
         void setupTextures(Frame frame) {
-            if (mTextureIds[0] != 0) {
-                GLES20.glDeleteTextures(3, mTextureIds, 0);
-            }
-            GLES20.glGenTextures(3, mTextureIds, 0);
-
             int w = frame.getWidth();
             int h = frame.getHeight();
             int hw = (w + 1) >> 1;
             int hh = (h + 1) >> 1;
 
-            initializeTexture(GLES20.GL_TEXTURE0, mTextureIds[0], w, h);
-            initializeTexture(GLES20.GL_TEXTURE1, mTextureIds[1], hw, hh);
-            initializeTexture(GLES20.GL_TEXTURE2, mTextureIds[2], hw, hh);
+            // Sizes seen before, e.g. after a simulcast layer switch back,
+            // keep their textures and need no reallocation.
+            int[] ids = mTextureCache.get(false, w, h);
+            if (ids == null) {
+                ids = new int[3];
+                GLES20.glGenTextures(3, ids, 0);
+                initializeTexture(GLES20.GL_TEXTURE0, ids[0], w, h);
+                initializeTexture(GLES20.GL_TEXTURE1, ids[1], hw, hh);
+                initializeTexture(GLES20.GL_TEXTURE2, ids[2], hw, hh);
+                mTextureCache.put(false, w, h, ids, (long) w * h + 2L * hw * hh);
+            }
+            mTextureIds = ids;
 
             mTextureWidth = frame.getWidth();
             mTextureHeight = frame.getHeight();
+            mDrawFrameUploaded = false;
         }
 
         void updateTextures(Frame frame) {
@@ -222,7 +614,18 @@ public class OpenTokCustomVideoRenderer extends BaseVideoRenderer {
             // limit
             bb.clear();
 
-            if (bb.remaining() == y_size + uv_size * 2) {
+            if (bb.remaining() == y_size + uv_size * 2 && mPackedActive) {
+                bb.position(0);
+
+                GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+                GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT, 1);
+
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mPackedTexture);
+                GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width,
+                        height + half_height, GLES20.GL_LUMINANCE,
+                        GLES20.GL_UNSIGNED_BYTE, bb);
+            } else if (bb.remaining() == y_size + uv_size * 2) {
                 bb.position(0);
 
                 GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
@@ -250,33 +653,133 @@ public class OpenTokCustomVideoRenderer extends BaseVideoRenderer {
             } else {
                 mTextureWidth = 0;
                 mTextureHeight = 0;
+                mPackedWidth = 0;
+                mPackedHeight = 0;
             }
 
         }
 
+        void setupPixelBuffers(int size) {
+            if (mPixelBuffers[0] != 0) {
+                GLES30.glDeleteBuffers(2, mPixelBuffers, 0);
+            }
+            GLES30.glGenBuffers(2, mPixelBuffers, 0);
+            for (int buffer : mPixelBuffers) {
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, buffer);
+                GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, size, null,
+                        GLES30.GL_STREAM_DRAW);
+            }
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+            mPixelBufferSize = size;
+            mPixelBufferIndex = 0;
+        }
+
+        // ES 3.0 variant of updateTextures. The planes are copied into one of
+        // two pixel buffers and the texture updates are sourced from it, so
+        // glTexSubImage2D returns without waiting for the driver to copy
+        // client memory. While this frame is written, the other buffer may
+        // still be feeding the previous frame's transfer and draw.
+        void streamTextures(Frame frame) {
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            int half_width = (width + 1) >> 1;
+            int half_height = (height + 1) >> 1;
+            int y_size = width * height;
+            int uv_size = half_width * half_height;
+            int size = y_size + uv_size * 2;
+
+            ByteBuffer bb = frame.getBuffer();
+            bb.clear();
+            if (bb.remaining() != size) {
+                mTextureWidth = 0;
+                mTextureHeight = 0;
+                mPackedWidth = 0;
+                mPackedHeight = 0;
+                return;
+            }
+
+            if (mPixelBuffers[0] == 0 || mPixelBufferSize != size) {
+                setupPixelBuffers(size);
+            }
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, mPixelBuffers[mPixelBufferIndex]);
+            mPixelBufferIndex ^= 1;
+
+            // Invalidating lets the driver hand out fresh storage instead of
+            // stalling on a buffer the GPU still reads from.
+            ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(
+                    GLES30.GL_PIXEL_UNPACK_BUFFER, 0, size,
+                    GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+            if (mapped == null) {
+                Timber.w("glMapBufferRange failed, falling back to direct texture uploads");
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+                mUsePixelBuffers = false;
+                updateTextures(frame);
+                return;
+            }
+            mapped.put(bb);
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+
+            GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+
+            if (mPackedActive) {
+                GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mPackedTexture);
+                GLES30.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width,
+                        height + half_height, GLES20.GL_LUMINANCE,
+                        GLES20.GL_UNSIGNED_BYTE, 0);
+                GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+                return;
+            }
+
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureIds[0]);
+            GLES30.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width,
+                    height, GLES20.GL_LUMINANCE, GLES20.GL_UNSIGNED_BYTE, 0);
+
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureIds[1]);
+            GLES30.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0,
+                    half_width, half_height, GLES20.GL_LUMINANCE,
+                    GLES20.GL_UNSIGNED_BYTE, y_size);
+
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE2);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureIds[2]);
+            GLES30.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0,
+                    half_width, half_height, GLES20.GL_LUMINANCE,
+                    GLES20.GL_UNSIGNED_BYTE, y_size + uv_size);
+
+            // Client memory uploads elsewhere must not see a bound buffer.
+            GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+        }
+
         @Override
         public void onSurfaceChanged(GL10 gl, int width, int height) {
-            GLES20.glViewport(0, 0, width, height);
+            setViewport(0, 0, width, height);
+            // A context kept over a pause gets no onSurfaceCreated call.
+            mSurfaceReady = true;
+        }
+
+        // The compositor draws each stream into its own part of the surface.
+        void setViewport(int x, int y, int width, int height) {
+            GLES20.glViewport(x, y, width, height);
+            mViewportX = x;
+            mViewportY = y;
             mViewportWidth = width;
             mViewportHeight = height;
         }
 
         @Override
         public void onDrawFrame(GL10 gl) {
-            mFrameLock.lock();
-            if (mCurrentFrame != null && !mVideoDisabled) {
-                GLES20.glUseProgram(mProgram);
-
-                if (mTextureWidth != mCurrentFrame.getWidth()
-                        || mTextureHeight != mCurrentFrame.getHeight()) {
-                    setupTextures(mCurrentFrame);
-                }
-                updateTextures(mCurrentFrame);
+            Frame frame = takeDrawFrame();
+            int program = frame != null ? prepareTextures(frame) : 0;
+            if (program != 0) {
+                long start = System.nanoTime();
+                GLES20.glUseProgram(program);
 
                 Matrix.setIdentityM(mScaleMatrix, 0);
                 float scaleX = 1.0f, scaleY = 1.0f;
-                float ratio = (float) mCurrentFrame.getWidth()
-                        / mCurrentFrame.getHeight();
+                float ratio = (float) frame.getWidth()
+                        / frame.getHeight();
                 float vratio = (float) mViewportWidth / mViewportHeight;
 
                 if (mVideoFitEnabled) {
@@ -294,78 +797,402 @@ public class OpenTokCustomVideoRenderer extends BaseVideoRenderer {
                 }
 
                 Matrix.scaleM(mScaleMatrix, 0,
-                        scaleX * (mCurrentFrame.isMirroredX() ? -1.0f : 1.0f),
+                        scaleX * (frame.isMirroredX() ? -1.0f : 1.0f),
                         scaleY, 1);
 
-                int mMVPMatrixHandle = GLES20.glGetUniformLocation(mProgram,
+                int mMVPMatrixHandle = GLES20.glGetUniformLocation(program,
                         "uMVPMatrix");
                 GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false,
                         mScaleMatrix, 0);
 
                 GLES20.glDrawElements(GLES20.GL_TRIANGLES, mVertexIndex.length,
                         GLES20.GL_UNSIGNED_SHORT, mDrawListBuffer);
+
+                long end = System.nanoTime();
+                mStats.frameDrawn(end, end - start, mDrawFrame != mLastDrawnFrame);
+                mLastDrawnFrame = mDrawFrame;
             } else {
                 //black frame when video is disabled
-                gl.glClearColor(0, 0, 0, 1);
+                GLES20.glClearColor(0, 0, 0, 1);
                 GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
             }
-            mFrameLock.unlock();
         }
 
-        public void getSnapshot(CallbackContext callbackContext){
-            mCallbackContext = callbackContext;
-            mSaveScreenshot = true;
+        // GL thread only. Swaps in the newest frame from the SDK thread,
+        // releasing the one it replaces, and returns the frame to draw.
+        private Frame takeDrawFrame() {
+            SharedFrame next = mPendingFrame.getAndSet(null);
+            if (next != null) {
+                if (mDrawFrame != null) {
+                    mDrawFrame.release();
+                }
+                mDrawFrame = next;
+                mDrawFrameUploaded = false;
+            }
+            if (mVideoDisabled && mDrawFrame != null) {
+                mDrawFrame.release();
+                mDrawFrame = null;
+            }
+            return mDrawFrame != null ? mDrawFrame.frame : null;
+        }
+
+        void setDrawingPaused(boolean paused) {
+            mDrawingPaused = paused;
+            if (paused) {
+                return;
+            }
+            // Hand over the newest frame so the view is current right away.
+            SharedFrame latest = SharedFrame.acquire(mLatestFrame);
+            if (latest != null) {
+                SharedFrame stale = mPendingFrame.getAndSet(latest);
+                if (stale != null) {
+                    stale.release();
+                }
+            }
         }
 
-        public void displayFrame(Frame frame) {
-            mFrameLock.lock();
-            if (this.mCurrentFrame != null) {
-                this.mCurrentFrame.recycle();
+        /** Frames replaced by a newer one before the GL thread drew them. */
+        long getSupersededFrameCount() {
+            return mSupersededFrames.get();
+        }
+
+        public void getSnapshot(CallbackContext callbackContext, SnapshotOptions options) {
+            if (options.isBurst()) {
+                startBurst(callbackContext, options);
+                return;
+            }
+            // A fresh frame is always taken on the CPU path, it arrives on
+            // the SDK thread rather than the GL thread.
+            GLSurfaceView view = mView;
+            if (options.useGpu() && !options.fresh && !mDrawingPaused && mSurfaceReady && view != null) {
+                view.queueEvent(() -> readSnapshot(callbackContext, options));
+                return;
+            }
+            getCpuSnapshot(callbackContext, options);
+        }
+
+        void getCpuSnapshot(CallbackContext callbackContext, SnapshotOptions options) {
+            if (!options.fresh) {
+                // Serve the snapshot from the frame on screen, or from the copy
+                // kept when video was disabled, instead of waiting for the
+                // remote side to send another frame. Requests for the same
+                // frame and options join one encode still in progress.
+                SharedFrame latest = SharedFrame.acquire(mLatestFrame);
+                RetainedFrame retained = mRetainedFrame;
+                if (latest != null) {
+                    try {
+                        SnapshotGroup group = SnapshotGroup.joinOrStart(latest.snapshots, options, callbackContext);
+                        if (group == null) {
+                            countCoalescedSnapshot();
+                            return;
+                        }
+                        Frame frame = latest.frame;
+                        int[] rect = options.cropRect(frame.getWidth(), frame.getHeight());
+                        byte[] yuv = copyPlanes(frame.getBuffer(), frame.getWidth(), frame.getHeight(), rect);
+                        SnapshotEncoder.submit(yuv, rect[2], rect[3], options, mSnapshotDirectory, group);
+                    } finally {
+                        latest.release();
+                    }
+                    return;
+                }
+                if (retained != null) {
+                    SnapshotGroup group = SnapshotGroup.joinOrStart(retained.snapshots, options, callbackContext);
+                    if (group == null) {
+                        countCoalescedSnapshot();
+                        return;
+                    }
+                    int[] rect = options.cropRect(retained.width, retained.height);
+                    byte[] yuv = copyPlanes(ByteBuffer.wrap(retained.yuv), retained.width, retained.height, rect);
+                    SnapshotEncoder.submit(yuv, rect[2], rect[3], options, mSnapshotDirectory, group);
+                    return;
+                }
+            }
+
+            // No frame yet (or a fresh one was asked for): take the next one.
+            mSnapshotLock.lock();
+            List<CallbackContext> callbacks = mPendingSnapshots.get(options);
+            if (callbacks == null) {
+                callbacks = new ArrayList<>();
+                mPendingSnapshots.put(options, callbacks);
+            } else {
+                mCoalescedSnapshots++;
+            }
+            callbacks.add(callbackContext);
+            mSnapshotsWaiting = true;
+            mSnapshotLock.unlock();
+        }
+
+        private void countCoalescedSnapshot() {
+            mSnapshotLock.lock();
+            mCoalescedSnapshots++;
+            mSnapshotLock.unlock();
+        }
+
+        /**
+         * Number of snapshot requests that were served by another request's
+         * conversion instead of their own.
+         */
+        long getCoalescedSnapshotCount() {
+            mSnapshotLock.lock();
+            try {
+                return mCoalescedSnapshots;
+            } finally {
+                mSnapshotLock.unlock();
+            }
+        }
+
+        void startBurst(CallbackContext callbackContext, SnapshotOptions options) {
+            SnapshotBurst burst = new SnapshotBurst(options, callbackContext, SystemClock.uptimeMillis());
+            mSnapshotLock.lock();
+            mBursts.add(burst);
+            mSnapshotsWaiting = true;
+            mSnapshotLock.unlock();
+            // Finish on time even if frames stop arriving.
+            mMainHandler.postDelayed(() -> finishBurst(burst), options.burstWindowMs + BURST_GRACE_MS);
+        }
+
+        void finishBurst(SnapshotBurst burst) {
+            mSnapshotLock.lock();
+            mBursts.remove(burst);
+            mSnapshotsWaiting = !mBursts.isEmpty() || !mPendingSnapshots.isEmpty();
+            mSnapshotLock.unlock();
+
+            if (!burst.claim()) {
+                return;
+            }
+            if (burst.best() == null) {
+                // No frame arrived during the window, use the last one shown.
+                getCpuSnapshot(burst.callbackContext, burst.options);
+                return;
             }
-            this.mCurrentFrame = frame;
-            mFrameLock.unlock();
+            SnapshotEncoder.submit(burst.best(), burst.bestWidth(), burst.bestHeight(),
+                    burst.options, mSnapshotDirectory, burst.callbackContext);
+        }
 
-            if(mSaveScreenshot) {
-                Timber.d("Capturing frame....");
+        // Runs on the GL thread. Falls back to the CPU path when there is
+        // nothing on screen or the offscreen framebuffer cannot be used.
+        void readSnapshot(CallbackContext callbackContext, SnapshotOptions options) {
+            ByteBuffer rgba = null;
+            int[] size = null;
+
+            Frame frame = takeDrawFrame();
+            if (frame != null) {
+                int[] rect = options.cropRect(frame.getWidth(), frame.getHeight());
+                size = options.targetSize(rect[2], rect[3]);
+                rgba = drawOffscreen(frame, rect, size[0], size[1]);
+            }
 
-                ByteBuffer bb = frame.getBuffer();
-                bb.clear();
+            if (rgba == null) {
+                getCpuSnapshot(callbackContext, options);
+                return;
+            }
+            SnapshotEncoder.submitRgba(rgba, size[0], size[1], options, mSnapshotDirectory, callbackContext);
+        }
 
-                int width = frame.getWidth();
-                int height = frame.getHeight();
-                int half_width = (width + 1) >> 1;
-                int half_height = (height + 1) >> 1;
-                int y_size = width * height;
-                int uv_size = half_width * half_height;
+        // Draws the rect {x, y, width, height} of frame with the YUV shader
+        // into a width x height framebuffer and reads it back as RGBA, top
+        // row first. Must be called on the GL thread.
+        private ByteBuffer drawOffscreen(Frame frame, int[] rect, int width, int height) {
+            int program = prepareTextures(frame);
+            if (program == 0) {
+                return null;
+            }
+
+            int[] texture = new int[1];
+            int[] framebuffer = new int[1];
+
+            // Use a spare texture unit so the Y, U and V bindings stay put.
+            GLES20.glGenTextures(1, texture, 0);
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D,
+                    GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA,
+                    width, height, 0, GLES20.GL_RGBA,
+                    GLES20.GL_UNSIGNED_BYTE, null);
 
-                byte[] yuv = new byte[y_size + uv_size * 2];
+            GLES20.glGenFramebuffers(1, framebuffer, 0);
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer[0]);
+            GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER,
+                    GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D,
+                    texture[0], 0);
+
+            ByteBuffer rgba = null;
+            if (GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER)
+                    == GLES20.GL_FRAMEBUFFER_COMPLETE) {
+                GLES20.glViewport(0, 0, width, height);
+                GLES20.glUseProgram(program);
+
+                // glReadPixels returns the bottom row first, so draw the
+                // frame upside down. Snapshots are never mirrored. The quad
+                // is then scaled and shifted so only rect covers the target.
+                float cropWidth = (float) rect[2] / frame.getWidth();
+                float cropHeight = (float) rect[3] / frame.getHeight();
+                float centerX = (rect[0] + rect[2] * 0.5f) / frame.getWidth();
+                float centerY = (rect[1] + rect[3] * 0.5f) / frame.getHeight();
+                Matrix.setIdentityM(mSnapshotMatrix, 0);
+                Matrix.scaleM(mSnapshotMatrix, 0, 1.0f, -1.0f, 1.0f);
+                Matrix.translateM(mSnapshotMatrix, 0,
+                        (1.0f - 2.0f * centerX) / cropWidth,
+                        (2.0f * centerY - 1.0f) / cropHeight, 0.0f);
+                Matrix.scaleM(mSnapshotMatrix, 0, 1.0f / cropWidth, 1.0f / cropHeight, 1.0f);
+                int mMVPMatrixHandle = GLES20.glGetUniformLocation(program,
+                        "uMVPMatrix");
+                GLES20.glUniformMatrix4fv(mMVPMatrixHandle, 1, false,
+                        mSnapshotMatrix, 0);
+
+                GLES20.glDrawElements(GLES20.GL_TRIANGLES, mVertexIndex.length,
+                        GLES20.GL_UNSIGNED_SHORT, mDrawListBuffer);
+
+                rgba = ByteBuffer.allocateDirect(width * height * 4);
+                GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA,
+                        GLES20.GL_UNSIGNED_BYTE, rgba);
+            } else {
+                Timber.w("snapshot framebuffer incomplete, using CPU conversion");
+            }
+
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+            GLES20.glDeleteFramebuffers(1, framebuffer, 0);
+            GLES20.glDeleteTextures(1, texture, 0);
+            GLES20.glViewport(mViewportX, mViewportY, mViewportWidth, mViewportHeight);
+            return rgba;
+        }
+
+        // The caller must hold a reference to frame. A duplicate keeps the
+        // GL thread's buffer position intact.
+        static byte[] copyPlanes(Frame frame) {
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            return copyPlanes(frame.getBuffer(), width, height, new int[]{0, 0, width, height});
+        }
+
+        // Copies only the rect {x, y, width, height} of the Y, U and V
+        // planes, so the rest of the snapshot work scales with the crop.
+        static byte[] copyPlanes(ByteBuffer buffer, int width, int height, int[] rect) {
+            byte[] yuv = new byte[YuvConverter.i420Size(rect[2], rect[3])];
+            copyPlanes(buffer, width, height, rect, yuv);
+            return yuv;
+        }
+
+        static void copyPlanes(ByteBuffer buffer, int width, int height, int[] rect, byte[] yuv) {
+            ByteBuffer bb = buffer.duplicate();
+            bb.clear();
+            if (rect[2] == width && rect[3] == height) {
                 bb.get(yuv);
-                int[] intArray = new int[width * height];
+            } else {
+                YuvConverter.cropI420(bb, width, height, rect, yuv);
+            }
+        }
 
-                // Decode Yuv data to integer array
-                decodeYUV420(intArray, yuv, width, height);
+        public void displayFrame(Frame frame) {
+            Map<SnapshotOptions, List<CallbackContext>> snapshots = null;
+            ArrayList<byte[]> snapshotPlanes = null;
+            ArrayList<int[]> snapshotRects = null;
+            ArrayList<SnapshotBurst> sampled = null;
+            ArrayList<byte[]> samples = null;
+            ArrayList<int[]> sampleRects = null;
+            long now = SystemClock.uptimeMillis();
+            int width = frame.getWidth();
+            int height = frame.getHeight();
 
-                //Initialize the bitmap, with the replaced color
-                Bitmap bmp = Bitmap.createBitmap(intArray, width, height, Bitmap.Config.ARGB_8888);
+            mRetainedFrame = null;
+
+            // The frame is not published yet, so it can be copied from
+            // without taking a reference.
+            if (mSnapshotsWaiting) {
+                mSnapshotLock.lock();
+                if (!mPendingSnapshots.isEmpty()) {
+                    Timber.d("Capturing frame....");
+                    snapshots = new LinkedHashMap<>(mPendingSnapshots);
+                    mPendingSnapshots.clear();
+
+                    // Only copy the planes here; conversion and encoding run on
+                    // the snapshot encoder so this callback thread keeps rendering.
+                    // One full copy serves every request without a crop.
+                    byte[] full = null;
+                    snapshotPlanes = new ArrayList<>();
+                    snapshotRects = new ArrayList<>();
+                    for (SnapshotOptions options : snapshots.keySet()) {
+                        int[] rect = options.cropRect(width, height);
+                        byte[] yuv;
+                        if (options.crop != null) {
+                            yuv = copyPlanes(frame.getBuffer(), width, height, rect);
+                        } else {
+                            if (full == null) {
+                                full = copyPlanes(frame);
+                            }
+                            yuv = full;
+                        }
+                        snapshotPlanes.add(yuv);
+                        snapshotRects.add(rect);
+                    }
+                }
 
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                for (SnapshotBurst burst : mBursts) {
+                    if (burst.wantsFrame(now)) {
+                        if (sampled == null) {
+                            sampled = new ArrayList<>();
+                            samples = new ArrayList<>();
+                            sampleRects = new ArrayList<>();
+                        }
+                        int[] rect = burst.options.cropRect(width, height);
+                        byte[] sample = burst.scratch(YuvConverter.i420Size(rect[2], rect[3]));
+                        copyPlanes(frame.getBuffer(), width, height, rect, sample);
+                        sampled.add(burst);
+                        samples.add(sample);
+                        sampleRects.add(rect);
+                    }
+                }
+                mSnapshotsWaiting = !mBursts.isEmpty();
+                mSnapshotLock.unlock();
+            }
 
-                try {
-                    //Create a thumbnail of 60x6o
-                    bmp.compress(Bitmap.CompressFormat.PNG, 100, baos);
+            SharedFrame shared = new SharedFrame(frame);
+            boolean draw = !mDrawingPaused;
+            if (draw) {
+                shared.retain();
+            }
+            SharedFrame previous = mLatestFrame.getAndSet(shared);
+            if (previous != null) {
+                previous.release();
+            }
+            if (draw) {
+                SharedFrame stale = mPendingFrame.getAndSet(shared);
+                if (stale != null) {
+                    mSupersededFrames.incrementAndGet();
+                    stale.release();
+                }
+            }
 
-                    byte[] b = baos.toByteArray();
-                    String snapshot = "data:image/png;base64," + Base64.encodeToString(b,Base64.DEFAULT);
-                    mCallbackContext.sendPluginResult(new PluginResult(PluginResult.Status.OK, snapshot));
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return;
+            // Score once the frame has been handed to the GL thread.
+            if (sampled != null) {
+                for (int i = 0; i < sampled.size(); i++) {
+                    SnapshotBurst burst = sampled.get(i);
+                    int[] rect = sampleRects.get(i);
+                    if (burst.offer(samples.get(i), rect[2], rect[3], now)) {
+                        finishBurst(burst);
+                    }
                 }
+            }
 
-                mSaveScreenshot = false;
+            if (snapshots != null) {
+                int i = 0;
+                for (Map.Entry<SnapshotOptions, List<CallbackContext>> snapshot : snapshots.entrySet()) {
+                    int[] rect = snapshotRects.get(i);
+                    SnapshotEncoder.submit(snapshotPlanes.get(i), rect[2], rect[3], snapshot.getKey(),
+                            mSnapshotDirectory, snapshot.getValue());
+                    i++;
+                }
             }
         }
 
+        /**
+         * @deprecated floating point reference implementation, use
+         * {@link YuvConverter#i420ToArgb(byte[], int, int, int[])} instead.
+         */
+        @Deprecated
         static public void decodeYUV420(int[] rgba, byte[] yuv420, int width, int height) {
             int half_width = (width + 1) >> 1;
             int half_height = (height +1) >> 1;
@@ -412,18 +1239,23 @@ public class OpenTokCustomVideoRenderer extends BaseVideoRenderer {
         }
 
         public void disableVideo(boolean b) {
-            mFrameLock.lock();
-
             mVideoDisabled = b;
 
             if (mVideoDisabled) {
-                if (this.mCurrentFrame != null) {
-                    this.mCurrentFrame.recycle();
+                SharedFrame latest = mLatestFrame.getAndSet(null);
+                if (latest != null) {
+                    // The SDK frame goes back to its pool, so keep a copy of
+                    // the last image around for snapshots.
+                    Frame frame = latest.frame;
+                    mRetainedFrame = new RetainedFrame(copyPlanes(frame), frame.getWidth(), frame.getHeight());
+                    latest.release();
+                }
+                SharedFrame pending = mPendingFrame.getAndSet(null);
+                if (pending != null) {
+                    pending.release();
                 }
-                this.mCurrentFrame = null;
+                // mDrawFrame is released by the GL thread on its next draw.
             }
-
-            mFrameLock.unlock();
         }
 
         public void enableVideoFit(boolean enableVideoFit) {
@@ -432,28 +1264,191 @@ public class OpenTokCustomVideoRenderer extends BaseVideoRenderer {
     }
 
     public OpenTokCustomVideoRenderer(Context context) {
+        this(context, false);
+    }
+
+    /**
+     * @param sharedCompositor draw through the one {@link VideoCompositor}
+     *                         surface shared by all streams instead of a
+     *                         GLSurfaceView of its own
+     */
+    public OpenTokCustomVideoRenderer(Context context, boolean sharedCompositor) {
         this.mContext = context;
 
+        // Ask for ES 3.0 where available so frames can be streamed through
+        // pixel buffers; the shaders are ES 2.0 and run on either.
+        boolean gles3 = supportsGles3(context);
+
+        mRenderer = new MyRenderer();
+        mRenderer.mPixelBuffersAllowed = gles3;
+        mRenderer.mSnapshotDirectory = new File(context.getCacheDir(), SnapshotFileStore.DIRECTORY_NAME);
+
+        if (sharedCompositor) {
+            mPlaceholder = new View(context);
+            mPlaceholder.addOnAttachStateChangeListener(new View.OnAttachStateChangeListener() {
+                @Override
+                public void onViewAttachedToWindow(View v) {
+                    VideoCompositor compositor = VideoCompositor.obtain(mContext, gles3);
+                    compositor.attach(v, mRenderer);
+                    mCompositor = compositor;
+                    compositor.requestRender();
+                }
+
+                @Override
+                public void onViewDetachedFromWindow(View v) {
+                    VideoCompositor compositor = mCompositor;
+                    mCompositor = null;
+                    if (compositor != null) {
+                        compositor.detach(v);
+                    }
+                }
+            });
+            return;
+        }
+
         mView = new GLSurfaceView(context);
-        mView.setEGLContextClientVersion(2);
+        mView.setEGLContextClientVersion(gles3 ? 3 : 2);
         mView.setZOrderMediaOverlay(true);
 
-        mRenderer = new MyRenderer();
+        mRenderer.mView = mView;
         mView.setRenderer(mRenderer);
 
         mView.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
     }
 
+    private void requestRender() {
+        if (mView != null) {
+            mView.requestRender();
+            return;
+        }
+        VideoCompositor compositor = mCompositor;
+        if (compositor != null) {
+            compositor.requestRender();
+        }
+    }
+
+    private static boolean supportsGles3(Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager == null) {
+            return false;
+        }
+        ConfigurationInfo info = activityManager.getDeviceConfigurationInfo();
+        return info != null && info.reqGlEsVersion >= 0x30000;
+    }
+
     @Override
     public void onFrame(Frame frame) {
 
+        mRenderer.mStats.frameReceived(System.nanoTime());
+        if (decimate()) {
+            mDecimatedFrames.incrementAndGet();
+            frame.recycle();
+            return;
+        }
         mRenderer.displayFrame(frame);
-        mView.requestRender();
+        if (mRenderer.mDrawingPaused) {
+            return;
+        }
+        VsyncRenderScheduler scheduler = mVsyncScheduler;
+        if (scheduler != null) {
+            scheduler.schedule();
+        } else {
+            requestRender();
+        }
+
+    }
+
+    // Whether to drop this frame to stay under the frame rate cap. Frames
+    // are due at fixed intervals so a 30 fps stream capped at 20 keeps two
+    // of every three; a due time more than an interval behind is reset so
+    // a stall does not let a burst through. Frames waited for by snapshots
+    // are never dropped.
+    private boolean decimate() {
+        long interval = mMinFrameIntervalNs;
+        if (interval == 0 || mRenderer.mSnapshotsWaiting) {
+            return false;
+        }
+        long now = System.nanoTime();
+        // tolerate capture jitter of an eighth of an interval
+        if (now < mNextFrameNs - (interval >> 3)) {
+            return true;
+        }
+        mNextFrameNs += interval;
+        if (mNextFrameNs < now) {
+            mNextFrameNs = now + interval;
+        }
+        return false;
+    }
+
+    /**
+     * Caps how many frames per second are drawn. Frames over the cap are
+     * recycled before reaching the GL thread. 0 removes the cap.
+     */
+    public void setMaxFps(double fps) {
+        mMinFrameIntervalNs = fps > 0 ? (long) (1e9 / fps) : 0;
+        Timber.i("max render fps " + (fps > 0 ? Double.toString(fps) : "uncapped"));
+    }
+
+    /**
+     * Stops drawing while the view cannot be seen. Frames keep arriving
+     * and stay available to snapshots, but are neither uploaded nor drawn.
+     * Resuming draws the newest frame at once.
+     */
+    public void setRenderingPaused(boolean paused) {
+        mRenderer.setDrawingPaused(paused);
+        if (!paused) {
+            requestRender();
+        }
+    }
 
+    /**
+     * Render at most once per display refresh, from the newest frame at that
+     * vsync, rather than once per received frame. Frames arriving faster
+     * than the display refreshes are then replaced before upload and counted
+     * by {@link #getSupersededFrameCount()}.
+     */
+    public void setVsyncAligned(boolean aligned) {
+        mVsyncScheduler = aligned ? new VsyncRenderScheduler(this::requestRender) : null;
     }
 
-    public void getSnapshot(CallbackContext callbackContext) {
-        mRenderer.getSnapshot(callbackContext);
+    /** Frames replaced by a newer frame before they were uploaded. */
+    public long getSupersededFrameCount() {
+        return mRenderer.getSupersededFrameCount();
+    }
+
+    /**
+     * Rolling frame rates, upload and draw time percentiles, frames that
+     * never reached the screen and the time since the last frame.
+     */
+    public JSONObject getStats() throws JSONException {
+        JSONObject stats = mRenderer.mStats.toJson(System.nanoTime());
+        stats.put("supersededFrames", getSupersededFrameCount());
+        stats.put("decimatedFrames", getDecimatedFrameCount());
+        stats.put("coalescedSnapshots", mRenderer.getCoalescedSnapshotCount());
+        return stats;
+    }
+
+    /** Frames per second received from the stream, or -1 before the first frame. */
+    public double getReceivedFps() {
+        return mRenderer.mStats.receivedFps(System.nanoTime());
+    }
+
+    /** Frames dropped by the frame rate cap. */
+    public long getDecimatedFrameCount() {
+        return mDecimatedFrames.get();
+    }
+
+    public void getSnapshot(CallbackContext callbackContext, SnapshotOptions options) {
+        mRenderer.getSnapshot(callbackContext, options);
+    }
+
+    /**
+     * Upload each frame into a single packed texture instead of three plane
+     * textures. Must be set before the view is attached; GPUs without highp
+     * fragment precision and odd sized frames keep the planar layout.
+     */
+    public void setPackedTextures(boolean packed) {
+        mRenderer.mPackedTexturesRequested = packed;
     }
 
     @Override
@@ -464,6 +1459,12 @@ public class OpenTokCustomVideoRenderer extends BaseVideoRenderer {
             } else if (BaseVideoRenderer.STYLE_VIDEO_FILL.equals(value)) {
                 mRenderer.enableVideoFit(false);
             }
+        } else if (STYLE_MAX_FPS.equals(key)) {
+            try {
+                setMaxFps(value != null ? Double.parseDouble(value) : 0);
+            } catch (NumberFormatException e) {
+                Timber.w("ignoring invalid " + STYLE_MAX_FPS + " " + value);
+            }
         }
     }
 
@@ -471,21 +1472,45 @@ public class OpenTokCustomVideoRenderer extends BaseVideoRenderer {
     public void onVideoPropertiesChanged(boolean videoEnabled) {
         Timber.i("onVideoPropertiesChanged " + Boolean.toString(videoEnabled));
         mRenderer.disableVideo(!videoEnabled);
+        requestRender();
     }
 
     @Override
     public View getView() {
-        return mView;
+        return mView != null ? mView : mPlaceholder;
     }
 
+    // The shared surface is never paused, it drops and recreates its EGL
+    // surface along with the window.
     @Override
     public void onPause() {
-        mView.onPause();
+        if (mView != null) {
+            // No surface to make the context current on until resumed.
+            mRenderer.mSurfaceReady = false;
+            mView.onPause();
+        }
     }
 
     @Override
     public void onResume() {
-        mView.onResume();
+        if (mView != null) {
+            mView.onResume();
+            // Redraw the frame held from before the pause right away.
+            mView.requestRender();
+        }
+    }
+
+    /**
+     * Keep the EGL context while paused, so resuming skips recompiling the
+     * shaders and reallocating textures, and the last frame is shown again
+     * without waiting for the stream. Costs the GPU memory of the context
+     * while in the background. Devices that cannot keep the context fall
+     * back to creating a new one.
+     */
+    public void setFastResume(boolean enabled) {
+        if (mView != null) {
+            mView.setPreserveEGLContextOnPause(enabled);
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package com.tokbox.cordova;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * Rolling render metrics of one video renderer: received and rendered frame
+ * rates over the last two seconds, and percentiles of the time the GL
+ * thread spends issuing texture uploads and draws over the last
+ * {@link #CAPACITY} of each. The GL calls are timed on the CPU, which is
+ * what stalls the render thread; GPU execution is not measured.
+ */
+final class RendererStats {
+
+    private static final int CAPACITY = 256;
+    private static final long RATE_WINDOW_NS = 2000000000L;
+
+    // Fixed size ring holding the newest values.
+    private static final class Ring {
+        final long[] values = new long[CAPACITY];
+        int next;
+        int size;
+
+        void add(long value) {
+            values[next] = value;
+            next = (next + 1) % CAPACITY;
+            if (size < CAPACITY) {
+                size++;
+            }
+        }
+
+        // Timestamps per second within the window ending at nowNs.
+        double rate(long nowNs, long sinceNs) {
+            long window = Math.min(RATE_WINDOW_NS, nowNs - sinceNs);
+            if (window <= 0) {
+                return 0;
+            }
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (nowNs - values[i] <= window) {
+                    count++;
+                }
+            }
+            return count * 1e9 / window;
+        }
+
+        // {p50, p90, p99} in milliseconds, empty without samples.
+        JSONObject percentiles() throws JSONException {
+            JSONObject result = new JSONObject();
+            if (size == 0) {
+                return result;
+            }
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            result.put("p50", percentile(sorted, 0.50));
+            result.put("p90", percentile(sorted, 0.90));
+            result.put("p99", percentile(sorted, 0.99));
+            return result;
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            int index = Math.max(0, (int) Math.ceil(p * sorted.length) - 1);
+            return sorted[index] / 1e6;
+        }
+    }
+
+    private final Ring received = new Ring();
+    private final Ring rendered = new Ring();
+    private final Ring uploadTimes = new Ring();
+    private final Ring drawTimes = new Ring();
+    private long firstReceivedNs;
+    private long firstRenderedNs;
+    private long lastReceivedNs;
+
+    synchronized void frameReceived(long nowNs) {
+        if (received.size == 0) {
+            firstReceivedNs = nowNs;
+        }
+        received.add(nowNs);
+        lastReceivedNs = nowNs;
+    }
+
+    synchronized void textureUploaded(long durationNs) {
+        uploadTimes.add(durationNs);
+    }
+
+    /**
+     * @param newFrame whether this draw showed a frame not drawn before;
+     *                 only those count towards the rendered frame rate
+     */
+    synchronized void frameDrawn(long nowNs, long durationNs, boolean newFrame) {
+        drawTimes.add(durationNs);
+        if (newFrame) {
+            if (rendered.size == 0) {
+                firstRenderedNs = nowNs;
+            }
+            rendered.add(nowNs);
+        }
+    }
+
+    /** Frames per second received from the SDK, or -1 before the first. */
+    synchronized double receivedFps(long nowNs) {
+        return received.size == 0 ? -1 : received.rate(nowNs, firstReceivedNs);
+    }
+
+    synchronized JSONObject toJson(long nowNs) throws JSONException {
+        JSONObject result = new JSONObject();
+        result.put("receivedFps", received.size == 0 ? 0 : received.rate(nowNs, firstReceivedNs));
+        result.put("renderedFps", rendered.size == 0 ? 0 : rendered.rate(nowNs, firstRenderedNs));
+        result.put("uploadMs", uploadTimes.percentiles());
+        result.put("drawMs", drawTimes.percentiles());
+        result.put("msSinceLastFrame", received.size == 0 ? -1 : (nowNs - lastReceivedNs) / 1000000);
+        return result;
+    }
+}
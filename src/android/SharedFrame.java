@@ -0,0 +1,65 @@
+package com.tokbox.cordova;
+
+import com.opentok.android.BaseVideoRenderer;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reference counted SDK video frame. The frame is recycled back to the SDK
+ * when the last holder releases it, so the decode thread, the GL thread and
+ * snapshot readers can each keep it alive without sharing a lock.
+ */
+final class SharedFrame {
+
+    final BaseVideoRenderer.Frame frame;
+    // snapshots being encoded from this frame, see SnapshotGroup
+    final HashMap<SnapshotOptions, SnapshotGroup> snapshots = new HashMap<>();
+
+    // starts with the creator's reference
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    SharedFrame(BaseVideoRenderer.Frame frame) {
+        this.frame = frame;
+    }
+
+    /**
+     * Adds a reference. Returns false if the frame has already been
+     * recycled and must not be touched.
+     */
+    boolean retain() {
+        while (true) {
+            int count = refs.get();
+            if (count == 0) {
+                return false;
+            }
+            if (refs.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        if (refs.decrementAndGet() == 0) {
+            frame.recycle();
+        }
+    }
+
+    /**
+     * Takes a reference to the frame currently held by {@code slot}, retrying
+     * if it is swapped out and recycled in between. Returns null if the slot
+     * is empty. The caller must {@link #release()} the result.
+     */
+    static SharedFrame acquire(AtomicReference<SharedFrame> slot) {
+        while (true) {
+            SharedFrame shared = slot.get();
+            if (shared == null) {
+                return null;
+            }
+            if (shared.retain()) {
+                return shared;
+            }
+        }
+    }
+}
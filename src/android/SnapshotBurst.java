@@ -0,0 +1,140 @@
+package com.tokbox.cordova;
+
+import org.apache.cordova.CallbackContext;
+
+/**
+ * Collects up to {@code burst} frames spread over {@code burstWindow} ms and
+ * keeps only the sharpest one. Frames are scored on the Y plane by the
+ * variance of a 3x3 Laplacian, so no RGB conversion happens until the
+ * winning frame is encoded.
+ */
+final class SnapshotBurst {
+
+    static final int MAX_FRAMES = 10;
+    static final long MAX_WINDOW_MS = 5000;
+
+    // samples per axis when scoring, keeps scoring cost independent of resolution
+    private static final int SCORE_GRID = 256;
+
+    final SnapshotOptions options;
+    final CallbackContext callbackContext;
+    final long deadlineMs;
+
+    private final long startMs;
+    private final long intervalMs;
+    private final int frames;
+
+    private int captured;
+    private boolean done;
+
+    private byte[] scratch;
+    private byte[] best;
+    private int bestWidth;
+    private int bestHeight;
+    private double bestScore = -1;
+
+    SnapshotBurst(SnapshotOptions options, CallbackContext callbackContext, long nowMs) {
+        this.options = options;
+        this.callbackContext = callbackContext;
+        this.frames = options.burstFrames;
+        this.startMs = nowMs;
+        this.deadlineMs = nowMs + options.burstWindowMs;
+        this.intervalMs = options.burstWindowMs / options.burstFrames;
+    }
+
+    /**
+     * Whether the frame arriving at {@code nowMs} should be sampled. Frames
+     * are taken at even intervals so the burst covers the whole window.
+     */
+    synchronized boolean wantsFrame(long nowMs) {
+        return !done && captured < frames && nowMs >= startMs + captured * intervalMs;
+    }
+
+    /**
+     * Buffer to copy the next sampled frame into. Never the current best,
+     * so it can be filled without holding this object's lock.
+     */
+    synchronized byte[] scratch(int size) {
+        if (scratch == null || scratch.length != size) {
+            scratch = new byte[size];
+        }
+        return scratch;
+    }
+
+    /**
+     * Scores a frame previously copied into {@link #scratch(int)}. Returns
+     * true once the burst has all its frames or its window has passed.
+     */
+    synchronized boolean offer(byte[] yuv, int width, int height, long nowMs) {
+        if (done) {
+            return false;
+        }
+        captured++;
+        double score = sharpness(yuv, width, height);
+        if (score > bestScore) {
+            scratch = best;
+            best = yuv;
+            bestWidth = width;
+            bestHeight = height;
+            bestScore = score;
+        }
+        return captured >= frames || nowMs >= deadlineMs;
+    }
+
+    /**
+     * Ends the burst. Returns false if it had already ended, so only one of
+     * the frame thread and the timeout delivers the result.
+     */
+    synchronized boolean claim() {
+        if (done) {
+            return false;
+        }
+        done = true;
+        scratch = null;
+        return true;
+    }
+
+    // Only valid after claim().
+    byte[] best() {
+        return best;
+    }
+
+    int bestWidth() {
+        return bestWidth;
+    }
+
+    int bestHeight() {
+        return bestHeight;
+    }
+
+    /**
+     * Variance of the 4-neighbour Laplacian over a grid of at most
+     * SCORE_GRID x SCORE_GRID luma samples. Higher means more edges, i.e.
+     * less motion blur or defocus.
+     */
+    static double sharpness(byte[] yuv, int width, int height) {
+        if (width < 3 || height < 3) {
+            return 0;
+        }
+        int stepX = Math.max(1, (width - 2) / SCORE_GRID);
+        int stepY = Math.max(1, (height - 2) / SCORE_GRID);
+        long sum = 0;
+        long sumSq = 0;
+        int n = 0;
+
+        for (int y = 1; y < height - 1; y += stepY) {
+            int row = y * width;
+            for (int x = 1; x < width - 1; x += stepX) {
+                int p = row + x;
+                int laplacian = 4 * (yuv[p] & 0xff)
+                        - (yuv[p - 1] & 0xff) - (yuv[p + 1] & 0xff)
+                        - (yuv[p - width] & 0xff) - (yuv[p + width] & 0xff);
+                sum += laplacian;
+                sumSq += laplacian * laplacian;
+                n++;
+            }
+        }
+        double mean = (double) sum / n;
+        return (double) sumSq / n - mean * mean;
+    }
+}
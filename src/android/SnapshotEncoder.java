@@ -0,0 +1,181 @@
+package com.tokbox.cordova;
+
+import android.graphics.Bitmap;
+import android.util.Base64;
+
+import org.apache.cordova.CallbackContext;
+import org.apache.cordova.PluginResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Converts and encodes snapshot frames away from the SDK video callback
+ * thread. Callers hand over a private copy of the I420 planes and return
+ * immediately; conversion, compression and the plugin result happen on a
+ * single bounded worker shared by all renderers.
+ */
+final class SnapshotEncoder {
+
+    private static final int MAX_PENDING_SNAPSHOTS = 4;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor executor = createExecutor();
+
+    private SnapshotEncoder() {
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        ThreadFactory threadFactory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(() -> {
+                    android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }, "OTSnapshotEncoder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(MAX_PENDING_SNAPSHOTS),
+                threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Queues an I420 frame copy for encoding. {@code yuv} must not be
+     * touched by the caller afterwards.
+     */
+    static void submit(byte[] yuv, int width, int height, SnapshotOptions options,
+                       File snapshotDirectory, CallbackContext callbackContext) {
+        submit(yuv, width, height, options, snapshotDirectory, Collections.singletonList(callbackContext));
+    }
+
+    /**
+     * Same as above, but converts and encodes once and sends the result to
+     * every callback. {@code yuv} is only read, so it may be shared between
+     * submissions with different options.
+     */
+    static void submit(byte[] yuv, int width, int height, SnapshotOptions options,
+                       File snapshotDirectory, List<CallbackContext> callbacks) {
+        submit(yuv, width, height, options, snapshotDirectory, new SnapshotGroup(callbacks));
+    }
+
+    /**
+     * Same as above for a group that more callbacks may join until the
+     * result is sent.
+     */
+    static void submit(byte[] yuv, int width, int height, SnapshotOptions options,
+                       File snapshotDirectory, SnapshotGroup group) {
+        try {
+            executor.execute(() -> encode(yuv, width, height, options, snapshotDirectory, group));
+        } catch (RejectedExecutionException e) {
+            Timber.w("snapshot dropped, encoder queue is full");
+            error(group, "snapshot encoder busy");
+        }
+    }
+
+    /**
+     * Queues RGBA pixels read back from the GPU, already at the target size
+     * and top row first, for encoding.
+     */
+    static void submitRgba(ByteBuffer rgba, int width, int height, SnapshotOptions options,
+                           File snapshotDirectory, CallbackContext callbackContext) {
+        try {
+            executor.execute(() -> encodeRgba(rgba, width, height, options, snapshotDirectory,
+                    new SnapshotGroup(callbackContext)));
+        } catch (RejectedExecutionException e) {
+            Timber.w("snapshot dropped, encoder queue is full");
+            callbackContext.error("snapshot encoder busy");
+        }
+    }
+
+    private static void encodeRgba(ByteBuffer rgba, int width, int height, SnapshotOptions options,
+                                   File snapshotDirectory, SnapshotGroup group) {
+        Bitmap bmp = null;
+        try {
+            // ARGB_8888 is stored as R, G, B, A bytes, the layout glReadPixels returns
+            bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            rgba.rewind();
+            bmp.copyPixelsFromBuffer(rgba);
+            deliver(bmp, options, snapshotDirectory, group);
+        } catch (Exception e) {
+            Timber.e("snapshot encoding failed: " + e.getMessage());
+            error(group, "snapshot encoding failed");
+        } finally {
+            if (bmp != null) {
+                bmp.recycle();
+            }
+        }
+    }
+
+    private static void encode(byte[] yuv, int width, int height, SnapshotOptions options,
+                               File snapshotDirectory, SnapshotGroup group) {
+        Bitmap bmp = null;
+        try {
+            // Downscale while converting so thumbnails never pay for a full
+            // size ARGB buffer.
+            int[] size = options.targetSize(width, height);
+            int[] argb = new int[size[0] * size[1]];
+            YuvConverter.i420ToArgb(yuv, width, height, argb, size[0], size[1]);
+            bmp = Bitmap.createBitmap(argb, size[0], size[1], Bitmap.Config.ARGB_8888);
+            deliver(bmp, options, snapshotDirectory, group);
+        } catch (Exception e) {
+            Timber.e("snapshot encoding failed: " + e.getMessage());
+            error(group, "snapshot encoding failed");
+        } finally {
+            if (bmp != null) {
+                bmp.recycle();
+            }
+        }
+    }
+
+    private static void deliver(Bitmap bmp, SnapshotOptions options, File snapshotDirectory,
+                                SnapshotGroup group) throws IOException {
+        if (SnapshotOptions.OUTPUT_FILE.equals(options.output)) {
+            String url = SnapshotFileStore.write(snapshotDirectory, bmp, options);
+            send(group, new PluginResult(PluginResult.Status.OK, url));
+            return;
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        bmp.compress(options.compressFormat(), options.quality, baos);
+
+        byte[] b = baos.toByteArray();
+        if (SnapshotOptions.OUTPUT_BLOB.equals(options.output)) {
+            // Binary results reach JS as an ArrayBuffer. Cordova still
+            // Base64 encodes them for the bridge; only OUTPUT_FILE avoids
+            // moving the image through it.
+            send(group, new PluginResult(PluginResult.Status.OK, b));
+        } else {
+            String snapshot = "data:" + options.mimeType() + ";base64," + Base64.encodeToString(b, Base64.NO_WRAP);
+            send(group, new PluginResult(PluginResult.Status.OK, snapshot));
+        }
+    }
+
+    private static void send(SnapshotGroup group, PluginResult result) {
+        for (CallbackContext callbackContext : group.seal()) {
+            callbackContext.sendPluginResult(result);
+        }
+    }
+
+    private static void error(SnapshotGroup group, String message) {
+        for (CallbackContext callbackContext : group.seal()) {
+            callbackContext.error(message);
+        }
+    }
+}
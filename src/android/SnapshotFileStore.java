@@ -0,0 +1,102 @@
+package com.tokbox.cordova;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import timber.log.Timber;
+
+/**
+ * Writes encoded snapshots into the app cache directory so only a file URL
+ * has to cross the Cordova bridge. Old snapshots are evicted once the
+ * directory exceeds {@link #MAX_FILES} entries or {@link #MAX_TOTAL_BYTES}.
+ */
+final class SnapshotFileStore {
+
+    static final String DIRECTORY_NAME = "opentok-snapshots";
+
+    private static final int MAX_FILES = 20;
+    private static final long MAX_TOTAL_BYTES = 32L * 1024 * 1024;
+    private static final String FILE_PREFIX = "snapshot-";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static int sequence = 0;
+
+    private SnapshotFileStore() {
+    }
+
+    /**
+     * Compresses {@code bmp} straight into a new file under {@code directory}
+     * and returns its file:// URL. The file only becomes visible under its
+     * final name once it has been completely written.
+     */
+    static synchronized String write(File directory, Bitmap bmp, SnapshotOptions options) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+
+        String name = FILE_PREFIX + System.currentTimeMillis() + "-" + (sequence++) + "." + options.format;
+        File target = new File(directory, name);
+        File temp = new File(directory, name + TEMP_SUFFIX);
+
+        try (FileOutputStream fos = new FileOutputStream(temp);
+             FileChannel channel = fos.getChannel()) {
+            OutputStream out = Channels.newOutputStream(channel);
+            if (!bmp.compress(options.compressFormat(), options.quality, out)) {
+                throw new IOException("bitmap compression failed");
+            }
+            out.flush();
+            channel.force(false);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("cannot rename " + temp);
+        }
+
+        evict(directory);
+        return Uri.fromFile(target).toString();
+    }
+
+    private static void evict(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        // newest first
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified());
+            }
+        });
+
+        long totalBytes = 0;
+        int kept = 0;
+        for (File file : files) {
+            if (!file.getName().startsWith(FILE_PREFIX) || file.getName().endsWith(TEMP_SUFFIX)) {
+                continue;
+            }
+            totalBytes += file.length();
+            // the newest snapshot is always kept, it was just handed out
+            if (kept > 0 && (kept >= MAX_FILES || totalBytes > MAX_TOTAL_BYTES)) {
+                if (!file.delete()) {
+                    Timber.w("could not evict snapshot " + file.getName());
+                }
+            } else {
+                kept++;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.tokbox.cordova;
+
+import org.apache.cordova.CallbackContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Callbacks waiting for one snapshot encode. Later requests for the same
+ * frame and options join the group until the encoder seals it to send the
+ * result, so they share one copy, conversion and encode, and one place in
+ * the encoder queue.
+ */
+final class SnapshotGroup {
+
+    private final ArrayList<CallbackContext> callbacks;
+    private boolean sealed;
+
+    SnapshotGroup(List<CallbackContext> callbacks) {
+        this.callbacks = new ArrayList<>(callbacks);
+    }
+
+    SnapshotGroup(CallbackContext callbackContext) {
+        this(Collections.singletonList(callbackContext));
+    }
+
+    /** Adds a callback, or returns false once the result is being sent. */
+    synchronized boolean join(CallbackContext callbackContext) {
+        if (sealed) {
+            return false;
+        }
+        callbacks.add(callbackContext);
+        return true;
+    }
+
+    /** Closes the group to new callbacks and returns everyone to answer. */
+    synchronized List<CallbackContext> seal() {
+        sealed = true;
+        return callbacks;
+    }
+
+    /**
+     * Joins the open group for {@code options} in {@code groups}, the
+     * pending snapshots of one frame, and returns null. Otherwise starts a
+     * new group there and returns it; the caller must then submit it.
+     */
+    static SnapshotGroup joinOrStart(Map<SnapshotOptions, SnapshotGroup> groups, SnapshotOptions options,
+                                     CallbackContext callbackContext) {
+        synchronized (groups) {
+            SnapshotGroup group = groups.get(options);
+            if (group != null && group.join(callbackContext)) {
+                return null;
+            }
+            group = new SnapshotGroup(callbackContext);
+            groups.put(options, group);
+            return group;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.tokbox.cordova;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Options accepted by getImgData, parsed from the optional second action
+ * argument: {@code {format: "png" | "jpeg" | "webp", quality: 0-100,
+ * maxWidth: px, maxHeight: px, output: "dataUrl" | "blob" | "file",
+ * fresh: boolean, mode: "cpu" | "gpu", burst: frames, burstWindow: ms,
+ * crop: {x, y, width, height}}}, crop values being fractions of the frame. Missing values give a full size PNG data URL of the
+ * frame currently on screen.
+ */
+final class SnapshotOptions {
+
+    static final String FORMAT_PNG = "png";
+    static final String FORMAT_JPEG = "jpeg";
+    static final String FORMAT_WEBP = "webp";
+
+    // Base64 data URL string
+    static final String OUTPUT_DATA_URL = "dataUrl";
+    // raw encoded bytes, delivered to JS as an ArrayBuffer (Base64 on the bridge)
+    static final String OUTPUT_BLOB = "blob";
+    // file:// URL of a copy written to the app cache directory
+    static final String OUTPUT_FILE = "file";
+
+    // YUV conversion on the snapshot encoder thread
+    static final String MODE_CPU = "cpu";
+    // draw with the renderer's shader into an offscreen framebuffer and read it back
+    static final String MODE_GPU = "gpu";
+
+    private static final String KEY_FORMAT = "format";
+    private static final String KEY_QUALITY = "quality";
+    private static final String KEY_MAX_WIDTH = "maxWidth";
+    private static final String KEY_MAX_HEIGHT = "maxHeight";
+    private static final String KEY_OUTPUT = "output";
+    private static final String KEY_FRESH = "fresh";
+    private static final String KEY_MODE = "mode";
+    private static final String KEY_BURST = "burst";
+    private static final String KEY_BURST_WINDOW = "burstWindow";
+    private static final String KEY_CROP = "crop";
+
+    private static final int DEFAULT_PNG_QUALITY = 100;
+    private static final int DEFAULT_LOSSY_QUALITY = 90;
+    private static final long DEFAULT_BURST_WINDOW_MS = 1000;
+
+    static final SnapshotOptions DEFAULT = new SnapshotOptions(FORMAT_PNG, DEFAULT_PNG_QUALITY, 0, 0, OUTPUT_DATA_URL, false, MODE_CPU, 1, 0, null);
+
+    final String format;
+    final int quality;
+    // 0 means unbounded
+    final int maxWidth;
+    final int maxHeight;
+    final String output;
+    // wait for the next decoded frame instead of using the last one shown
+    final boolean fresh;
+    final String mode;
+    // frames to sample and keep the sharpest of, 1 means no burst
+    final int burstFrames;
+    final long burstWindowMs;
+    // normalized {x, y, width, height}, null for the whole frame
+    final double[] crop;
+
+    private SnapshotOptions(String format, int quality, int maxWidth, int maxHeight, String output,
+                            boolean fresh, String mode, int burstFrames, long burstWindowMs,
+                            double[] crop) {
+        this.format = format;
+        this.quality = quality;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.output = output;
+        this.fresh = fresh;
+        this.mode = mode;
+        this.burstFrames = burstFrames;
+        this.burstWindowMs = burstWindowMs;
+        this.crop = crop;
+    }
+
+    static SnapshotOptions fromJson(JSONObject json) {
+        if (json == null) {
+            return DEFAULT;
+        }
+        String format = json.optString(KEY_FORMAT, FORMAT_PNG).toLowerCase(Locale.ROOT);
+        if (format.startsWith("image/")) {
+            format = format.substring("image/".length());
+        }
+        if ("jpg".equals(format)) {
+            format = FORMAT_JPEG;
+        } else if (!FORMAT_JPEG.equals(format) && !FORMAT_WEBP.equals(format)) {
+            format = FORMAT_PNG;
+        }
+        int defaultQuality = FORMAT_PNG.equals(format) ? DEFAULT_PNG_QUALITY : DEFAULT_LOSSY_QUALITY;
+        int quality = Math.max(0, Math.min(100, json.optInt(KEY_QUALITY, defaultQuality)));
+        int maxWidth = Math.max(0, json.optInt(KEY_MAX_WIDTH, 0));
+        int maxHeight = Math.max(0, json.optInt(KEY_MAX_HEIGHT, 0));
+        String output = json.optString(KEY_OUTPUT, OUTPUT_DATA_URL);
+        if (!OUTPUT_BLOB.equals(output) && !OUTPUT_FILE.equals(output)) {
+            output = OUTPUT_DATA_URL;
+        }
+        boolean fresh = json.optBoolean(KEY_FRESH, false);
+        String mode = MODE_GPU.equals(json.optString(KEY_MODE)) ? MODE_GPU : MODE_CPU;
+        int burstFrames = Math.max(1, Math.min(SnapshotBurst.MAX_FRAMES, json.optInt(KEY_BURST, 1)));
+        long burstWindowMs = Math.max(0, Math.min(SnapshotBurst.MAX_WINDOW_MS,
+                json.optLong(KEY_BURST_WINDOW, DEFAULT_BURST_WINDOW_MS)));
+        double[] crop = parseCrop(json.optJSONObject(KEY_CROP));
+        return new SnapshotOptions(format, quality, maxWidth, maxHeight, output, fresh, mode,
+                burstFrames, burstWindowMs, crop);
+    }
+
+    private static double[] parseCrop(JSONObject json) {
+        if (json == null) {
+            return null;
+        }
+        double x = Math.max(0, Math.min(1, json.optDouble("x", 0)));
+        double y = Math.max(0, Math.min(1, json.optDouble("y", 0)));
+        double width = Math.min(1 - x, json.optDouble("width", 1 - x));
+        double height = Math.min(1 - y, json.optDouble("height", 1 - y));
+        // NaN fails both comparisons
+        if (!(width > 0) || !(height > 0)) {
+            return null;
+        }
+        if (x == 0 && y == 0 && width == 1 && height == 1) {
+            return null;
+        }
+        return new double[]{x, y, width, height};
+    }
+
+    // Requests with equal options can share one conversion and encode.
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SnapshotOptions)) {
+            return false;
+        }
+        SnapshotOptions other = (SnapshotOptions) o;
+        return quality == other.quality
+                && maxWidth == other.maxWidth
+                && maxHeight == other.maxHeight
+                && fresh == other.fresh
+                && format.equals(other.format)
+                && output.equals(other.output)
+                && mode.equals(other.mode)
+                && burstFrames == other.burstFrames
+                && burstWindowMs == other.burstWindowMs
+                && Arrays.equals(crop, other.crop);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(format, quality, maxWidth, maxHeight, output, fresh, mode,
+                burstFrames, burstWindowMs) * 31 + Arrays.hashCode(crop);
+    }
+
+    boolean isBurst() {
+        return burstFrames > 1;
+    }
+
+    boolean useGpu() {
+        return MODE_GPU.equals(mode);
+    }
+
+    String mimeType() {
+        return "image/" + format;
+    }
+
+    @SuppressWarnings("deprecation")
+    Bitmap.CompressFormat compressFormat() {
+        if (FORMAT_JPEG.equals(format)) {
+            return Bitmap.CompressFormat.JPEG;
+        }
+        if (FORMAT_WEBP.equals(format)) {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    ? Bitmap.CompressFormat.WEBP_LOSSY
+                    : Bitmap.CompressFormat.WEBP;
+        }
+        return Bitmap.CompressFormat.PNG;
+    }
+
+    /**
+     * Pixel rectangle {x, y, width, height} of the crop within a frame. The
+     * origin is rounded down to even coordinates so it starts on a chroma
+     * sample; the far edges are rounded out.
+     */
+    int[] cropRect(int width, int height) {
+        if (crop == null) {
+            return new int[]{0, 0, width, height};
+        }
+        int x = ((int) Math.floor(crop[0] * width)) & ~1;
+        int y = ((int) Math.floor(crop[1] * height)) & ~1;
+        int right = Math.min(width, (int) Math.ceil((crop[0] + crop[2]) * width));
+        int bottom = Math.min(height, (int) Math.ceil((crop[1] + crop[3]) * height));
+        x = Math.min(x, Math.max(0, right - 1) & ~1);
+        y = Math.min(y, Math.max(0, bottom - 1) & ~1);
+        return new int[]{x, y, Math.max(1, right - x), Math.max(1, bottom - y)};
+    }
+
+    /**
+     * Largest size that fits within maxWidth x maxHeight while keeping the
+     * source aspect ratio. Never upscales. Returns {width, height}.
+     */
+    int[] targetSize(int width, int height) {
+        double scale = 1.0;
+        if (maxWidth > 0 && width > maxWidth) {
+            scale = Math.min(scale, (double) maxWidth / width);
+        }
+        if (maxHeight > 0 && height > maxHeight) {
+            scale = Math.min(scale, (double) maxHeight / height);
+        }
+        if (scale >= 1.0) {
+            return new int[]{width, height};
+        }
+        return new int[]{
+                Math.max(1, (int) Math.round(width * scale)),
+                Math.max(1, (int) Math.round(height * scale))
+        };
+    }
+}
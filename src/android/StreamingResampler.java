@@ -0,0 +1,67 @@
+package com.tokbox.cordova;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Converts mono 16-bit audio from one sample rate to another, chunk by
+ * chunk, by linear interpolation. State carries over between chunks, so a
+ * stream split into reads of any size converts without clicks at the
+ * chunk boundaries. Nothing is allocated after construction; meant for
+ * the capture thread, where the usual conversions are between 44.1 and
+ * 48 kHz of speech.
+ */
+final class StreamingResampler {
+
+    private final int inRate;
+    private final int outRate;
+    // Input position of the next output sample in units of 1/outRate input
+    // samples; position 0 is the last sample of the previous chunk.
+    private long position;
+    private int previous;
+
+    StreamingResampler(int inRate, int outRate) {
+        if (inRate <= 0 || outRate <= 0) {
+            throw new IllegalArgumentException("sample rates must be positive: " + inRate + ", " + outRate);
+        }
+        this.inRate = inRate;
+        this.outRate = outRate;
+    }
+
+    /** Most output samples {@link #process} produces from {@code inputSamples}. */
+    int maxOutput(int inputSamples) {
+        return (int) (((long) inputSamples * outRate + inRate - 1) / inRate) + 1;
+    }
+
+    /**
+     * Converts {@code count} samples from the start of {@code in} to the
+     * start of {@code out}, which must hold {@link #maxOutput} samples.
+     * Buffer positions are left alone.
+     *
+     * @return the number of samples written
+     */
+    int process(ShortBuffer in, int count, ShortBuffer out) {
+        if (count <= 0) {
+            return 0;
+        }
+        int written = 0;
+        long end = (long) count * outRate;
+        // the sample after the output position must be in this chunk
+        while (position < end) {
+            int index = (int) (position / outRate);
+            long fraction = position % outRate;
+            int a = index == 0 ? previous : in.get(index - 1);
+            int b = in.get(index);
+            out.put(written++, (short) (a + (b - a) * fraction / outRate));
+            position += inRate;
+        }
+        previous = in.get(count - 1);
+        position -= end;
+        return written;
+    }
+
+    /** Starts a new stream, for example after capture restarts. */
+    void reset() {
+        position = 0;
+        previous = 0;
+    }
+}
@@ -0,0 +1,75 @@
+package com.tokbox.cordova;
+
+import android.opengl.GLES20;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Texture sets of recently seen frame sizes, so switching back to a
+ * simulcast layer reuses its textures instead of reallocating them. Least
+ * recently used sets are deleted once the cache holds more than
+ * {@link #MAX_SETS} sets or {@link #MAX_BYTES} of texture memory. GL thread
+ * only.
+ */
+final class TextureCache {
+
+    private static final int MAX_SETS = 4;
+    private static final long MAX_BYTES = 24L * 1024 * 1024;
+
+    private static final class Entry {
+        final int[] ids;
+        final long bytes;
+
+        Entry(int[] ids, long bytes) {
+            this.ids = ids;
+            this.bytes = bytes;
+        }
+    }
+
+    // access ordered, least recently used first
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(8, 0.75f, true);
+    private long totalBytes;
+
+    private static long key(boolean packed, int width, int height) {
+        return (packed ? 1L << 62 : 0) | ((long) width << 31) | height;
+    }
+
+    /** Texture ids cached for this layout and size, or null. */
+    int[] get(boolean packed, int width, int height) {
+        Entry entry = entries.get(key(packed, width, height));
+        return entry != null ? entry.ids : null;
+    }
+
+    /**
+     * Adds a freshly allocated set and evicts old ones if over budget. The
+     * set just added is never evicted, it is about to be drawn from.
+     */
+    void put(boolean packed, int width, int height, int[] ids, long bytes) {
+        entries.put(key(packed, width, height), new Entry(ids, bytes));
+        totalBytes += bytes;
+
+        Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+        while ((entries.size() > MAX_SETS || totalBytes > MAX_BYTES) && entries.size() > 1) {
+            Entry eldest = it.next().getValue();
+            GLES20.glDeleteTextures(eldest.ids.length, eldest.ids, 0);
+            totalBytes -= eldest.bytes;
+            it.remove();
+        }
+    }
+
+    /**
+     * Forgets every set. Pass false when the GL context they belonged to is
+     * already gone.
+     */
+    void clear(boolean deleteTextures) {
+        if (deleteTextures) {
+            for (Entry entry : entries.values()) {
+                GLES20.glDeleteTextures(entry.ids.length, entry.ids, 0);
+            }
+        }
+        entries.clear();
+        totalBytes = 0;
+    }
+}
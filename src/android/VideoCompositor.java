@@ -0,0 +1,226 @@
+package com.tokbox.cordova;
+
+import android.content.Context;
+import android.graphics.PixelFormat;
+import android.opengl.GLES20;
+import android.opengl.GLSurfaceView;
+import android.os.Build;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewParent;
+import android.view.ViewTreeObserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.opengles.GL10;
+
+/**
+ * One translucent GLSurfaceView that draws every stream, instead of one
+ * surface, EGL context and render thread per stream. The shader programs
+ * are compiled once per context; each stream's
+ * {@link OpenTokCustomVideoRenderer.MyRenderer} only keeps its textures
+ * and snapshot state, and hands the plugin a plain placeholder view. The plugin
+ * positions that view as usual, and its geometry becomes the stream's
+ * viewport here.
+ *
+ * The surface is added next to the first placeholder and removed with the
+ * last one.
+ */
+final class VideoCompositor implements GLSurfaceView.Renderer, ViewTreeObserver.OnPreDrawListener {
+
+    private static VideoCompositor sInstance;
+
+    /** A stream drawn by the compositor. */
+    static final class Slot {
+        final View view;
+        final OpenTokCustomVideoRenderer.MyRenderer renderer;
+        // {x, y, width, height, z} in surface pixels with a top-left origin,
+        // null while hidden; replaced as a whole by the UI thread
+        volatile int[] geometry;
+        // GL thread only
+        boolean initialized;
+        int[] drawGeometry;
+
+        Slot(View view, OpenTokCustomVideoRenderer.MyRenderer renderer) {
+            this.view = view;
+            this.renderer = renderer;
+        }
+    }
+
+    private final GLSurfaceView mSurface;
+    private final CopyOnWriteArrayList<Slot> mSlots = new CopyOnWriteArrayList<>();
+    // detached renderers whose releaseGl has not run on the GL thread yet
+    private final CopyOnWriteArrayList<OpenTokCustomVideoRenderer.MyRenderer> mReleasing =
+            new CopyOnWriteArrayList<>();
+    private int mSurfaceHeight;
+    // {planar, packed} for the current context, GL thread only
+    private int[] mPrograms;
+
+    private VideoCompositor(Context context, boolean gles3) {
+        mSurface = new GLSurfaceView(context);
+        mSurface.setEGLContextClientVersion(gles3 ? 3 : 2);
+        // Areas between streams must show the web view behind.
+        mSurface.setEGLConfigChooser(8, 8, 8, 8, 0, 0);
+        mSurface.getHolder().setFormat(PixelFormat.TRANSLUCENT);
+        mSurface.setZOrderMediaOverlay(true);
+        mSurface.setRenderer(this);
+        mSurface.setRenderMode(GLSurfaceView.RENDERMODE_WHEN_DIRTY);
+    }
+
+    static synchronized VideoCompositor obtain(Context context, boolean gles3) {
+        if (sInstance == null) {
+            sInstance = new VideoCompositor(context, gles3);
+        }
+        return sInstance;
+    }
+
+    void requestRender() {
+        mSurface.requestRender();
+    }
+
+    /**
+     * Starts drawing {@code renderer} into the area of {@code view}. Called
+     * on the UI thread once the placeholder is attached.
+     */
+    void attach(View view, OpenTokCustomVideoRenderer.MyRenderer renderer) {
+        if (mSurface.getParent() == null) {
+            ViewParent parent = view.getParent();
+            if (!(parent instanceof ViewGroup)) {
+                return;
+            }
+            ((ViewGroup) parent).addView(mSurface, 0, new ViewGroup.LayoutParams(
+                    ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT));
+            mSurface.getViewTreeObserver().addOnPreDrawListener(this);
+        }
+        renderer.mView = mSurface;
+        renderer.mSharedContext = true;
+        mSlots.add(new Slot(view, renderer));
+        onPreDraw();
+    }
+
+    /** Stops drawing the stream of {@code view}. UI thread. */
+    void detach(View view) {
+        for (Slot slot : mSlots) {
+            if (slot.view == view) {
+                mSlots.remove(slot);
+                OpenTokCustomVideoRenderer.MyRenderer renderer = slot.renderer;
+                renderer.mView = null;
+                mReleasing.add(renderer);
+                mSurface.queueEvent(() -> {
+                    if (mReleasing.remove(renderer)) {
+                        renderer.releaseGl();
+                    }
+                });
+            }
+        }
+        if (!mSlots.isEmpty()) {
+            requestRender();
+            return;
+        }
+
+        // Last stream gone: drop the surface, and with it the GL thread.
+        mSurface.getViewTreeObserver().removeOnPreDrawListener(this);
+        ViewParent parent = mSurface.getParent();
+        if (parent instanceof ViewGroup) {
+            ((ViewGroup) parent).removeView(mSurface);
+        }
+        // Detaching the surface waits for the GL thread to exit, which drops
+        // events still queued. The textures went with the context, but the
+        // frames still held must go back to the SDK.
+        for (OpenTokCustomVideoRenderer.MyRenderer renderer : mReleasing) {
+            if (mReleasing.remove(renderer)) {
+                renderer.releaseFrames();
+            }
+        }
+        synchronized (VideoCompositor.class) {
+            if (sInstance == this) {
+                sInstance = null;
+            }
+        }
+    }
+
+    // Picks up placeholder moves and resizes made by the plugin. Runs on
+    // the UI thread before every draw pass, which setX/setY and layout
+    // changes trigger.
+    @Override
+    public boolean onPreDraw() {
+        boolean changed = false;
+        for (Slot slot : mSlots) {
+            View view = slot.view;
+            int[] geometry = null;
+            if (view.getVisibility() == View.VISIBLE && view.getWidth() > 0 && view.getHeight() > 0) {
+                geometry = new int[]{
+                        Math.round(view.getX() - mSurface.getX()),
+                        Math.round(view.getY() - mSurface.getY()),
+                        view.getWidth(),
+                        view.getHeight(),
+                        Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                                ? Math.round(view.getTranslationZ()) : 0
+                };
+            }
+            int[] previous = slot.geometry;
+            if (!Arrays.equals(previous, geometry)) {
+                slot.geometry = geometry;
+                changed = true;
+            }
+        }
+        if (changed) {
+            requestRender();
+        }
+        return true;
+    }
+
+    @Override
+    public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        // Programs are compiled again for the new context, and every
+        // renderer starts over with them.
+        mPrograms = null;
+        for (Slot slot : mSlots) {
+            slot.initialized = false;
+        }
+    }
+
+    @Override
+    public void onSurfaceChanged(GL10 gl, int width, int height) {
+        mSurfaceHeight = height;
+    }
+
+    @Override
+    public void onDrawFrame(GL10 gl) {
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+        GLES20.glClearColor(0, 0, 0, 0);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        // back to front, as the separate surfaces were ordered by z-index
+        ArrayList<Slot> visible = new ArrayList<>();
+        for (Slot slot : mSlots) {
+            slot.drawGeometry = slot.geometry;
+            if (slot.drawGeometry != null) {
+                visible.add(slot);
+            }
+        }
+        Collections.sort(visible, (a, b) -> Integer.compare(a.drawGeometry[4], b.drawGeometry[4]));
+
+        GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+        for (Slot slot : visible) {
+            int[] g = slot.drawGeometry;
+            // GL's origin is bottom-left
+            int y = mSurfaceHeight - (g[1] + g[3]);
+            GLES20.glScissor(g[0], y, g[2], g[3]);
+            if (!slot.initialized) {
+                if (mPrograms == null) {
+                    mPrograms = slot.renderer.createPrograms(slot.renderer.mPackedTexturesRequested);
+                }
+                slot.renderer.useSharedPrograms(mPrograms[0], mPrograms[1]);
+                slot.initialized = true;
+            }
+            slot.renderer.setViewport(g[0], y, g[2], g[3]);
+            slot.renderer.onDrawFrame(gl);
+        }
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+    }
+}
@@ -0,0 +1,46 @@
+package com.tokbox.cordova;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Turns any number of render requests between two display refreshes into a
+ * single render on the next vsync. The GL thread then wakes once per
+ * refresh and uploads only the newest frame, instead of once per decoded
+ * frame. Requests may come from any thread.
+ */
+final class VsyncRenderScheduler implements Choreographer.FrameCallback {
+
+    private final Runnable render;
+    private final AtomicBoolean posted = new AtomicBoolean();
+    // the main thread's choreographer, which can only be obtained there
+    private volatile Choreographer choreographer;
+
+    VsyncRenderScheduler(Runnable render) {
+        this.render = render;
+        new Handler(Looper.getMainLooper()).post(() -> choreographer = Choreographer.getInstance());
+    }
+
+    void schedule() {
+        if (!posted.compareAndSet(false, true)) {
+            // already rendering on the next vsync
+            return;
+        }
+        Choreographer c = choreographer;
+        if (c == null) {
+            posted.set(false);
+            render.run();
+            return;
+        }
+        c.postFrameCallback(this);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        posted.set(false);
+        render.run();
+    }
+}
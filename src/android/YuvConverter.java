@@ -0,0 +1,277 @@
+package com.tokbox.cordova;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Integer I420 to ARGB_8888 converter used for snapshots.
+ *
+ * Uses the same full range BT.601 coefficients as the original
+ * {@code decodeYUV420}, but with exact integer math: the chroma terms are
+ * computed once per 2x2 block from lookup tables and clamping is a table
+ * lookup. Rows are split across cores with fork-join.
+ */
+final class YuvConverter {
+
+    // chroma rows per fork-join leaf task (two luma rows each)
+    private static final int ROWS_PER_TASK = 16;
+
+    // y + chroma offset lies in [-227, 480]
+    private static final int CLAMP_OFFSET = 384;
+    private static final int[] CLAMP = new int[CLAMP_OFFSET * 2 + 256];
+
+    // R = Y + floor(1.402 * (V - 128)), B = Y + floor(1.772 * (U - 128))
+    private static final int[] R_V = new int[256];
+    private static final int[] B_U = new int[256];
+    // G = Y - ceil((34414 * (U - 128) + 71414 * (V - 128)) / 100000)
+    private static final int[] G_U = new int[256];
+    private static final int[] G_V = new int[256];
+
+    static {
+        for (int i = 0; i < CLAMP.length; i++) {
+            int c = i - CLAMP_OFFSET;
+            CLAMP[i] = c < 0 ? 0 : (c > 255 ? 255 : c);
+        }
+        for (int i = 0; i < 256; i++) {
+            int d = i - 128;
+            R_V[i] = Math.floorDiv(1402 * d, 1000);
+            B_U[i] = Math.floorDiv(1772 * d, 1000);
+            G_U[i] = 34414 * d;
+            G_V[i] = 71414 * d;
+        }
+    }
+
+    private static final int PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // A pool of our own: ForkJoinPool.commonPool() needs API 24.
+    private static final class Pool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool(PARALLELISM);
+    }
+
+    private YuvConverter() {
+    }
+
+    /**
+     * Converts a tightly packed I420 buffer (Y, then U, then V) into ARGB
+     * pixels. {@code argb} must hold at least {@code width * height} entries.
+     */
+    static void i420ToArgb(byte[] yuv, int width, int height, int[] argb) {
+        int chromaRows = (height + 1) >> 1;
+        if (chromaRows <= ROWS_PER_TASK || PARALLELISM == 1) {
+            convertRows(yuv, width, height, argb, 0, chromaRows);
+        } else {
+            Pool.INSTANCE.invoke(new RowTask(yuv, width, height, argb, 0, chromaRows));
+        }
+    }
+
+    /** Size in bytes of a tightly packed I420 image. */
+    static int i420Size(int width, int height) {
+        int halfWidth = (width + 1) >> 1;
+        int halfHeight = (height + 1) >> 1;
+        return width * height + halfWidth * halfHeight * 2;
+    }
+
+    /**
+     * Copies the region {@code rect = {x, y, width, height}} of a packed I420
+     * image into {@code dst} as a packed I420 image of the region's size.
+     * {@code x} and {@code y} must be even so the chroma planes line up.
+     * Moves the position of {@code src}.
+     */
+    static void cropI420(ByteBuffer src, int width, int height, int[] rect, byte[] dst) {
+        int x = rect[0];
+        int y = rect[1];
+        int cropWidth = rect[2];
+        int cropHeight = rect[3];
+        int halfWidth = (width + 1) >> 1;
+        int halfHeight = (height + 1) >> 1;
+        int cropHalfWidth = (cropWidth + 1) >> 1;
+        int cropHalfHeight = (cropHeight + 1) >> 1;
+        int out = 0;
+
+        for (int row = 0; row < cropHeight; row++) {
+            src.position((y + row) * width + x);
+            src.get(dst, out, cropWidth);
+            out += cropWidth;
+        }
+        int uOffset = width * height;
+        int vOffset = uOffset + halfWidth * halfHeight;
+        for (int plane = uOffset; plane <= vOffset; plane += vOffset - uOffset) {
+            for (int row = 0; row < cropHalfHeight; row++) {
+                src.position(plane + ((y >> 1) + row) * halfWidth + (x >> 1));
+                src.get(dst, out, cropHalfWidth);
+                out += cropHalfWidth;
+            }
+        }
+    }
+
+    /**
+     * Single threaded conversion of the luma rows covered by chroma rows
+     * {@code [fromChromaRow, toChromaRow)}.
+     */
+    static void convertRows(byte[] yuv, int width, int height, int[] argb,
+                            int fromChromaRow, int toChromaRow) {
+        int halfWidth = (width + 1) >> 1;
+        int halfHeight = (height + 1) >> 1;
+        int uOffset = width * height;
+        int vOffset = uOffset + halfWidth * halfHeight;
+        int[] clamp = CLAMP;
+
+        for (int cj = fromChromaRow; cj < toChromaRow; cj++) {
+            int row0 = cj << 1;
+            int row1 = row0 + 1 < height ? row0 + 1 : -1;
+            int uRow = uOffset + cj * halfWidth;
+            int vRow = vOffset + cj * halfWidth;
+
+            for (int ci = 0; ci < halfWidth; ci++) {
+                int u = yuv[uRow + ci] & 0xff;
+                int v = yuv[vRow + ci] & 0xff;
+                int r = CLAMP_OFFSET + R_V[v];
+                int g = CLAMP_OFFSET - Math.floorDiv(G_U[u] + G_V[v] + 99999, 100000);
+                int b = CLAMP_OFFSET + B_U[u];
+
+                int i = ci << 1;
+                int last = i + 1 < width ? i + 1 : i;
+                for (; i <= last; i++) {
+                    int p = row0 * width + i;
+                    int y = yuv[p] & 0xff;
+                    argb[p] = 0xff000000 | (clamp[y + r] << 16) | (clamp[y + g] << 8) | clamp[y + b];
+                    if (row1 >= 0) {
+                        p += width;
+                        y = yuv[p] & 0xff;
+                        argb[p] = 0xff000000 | (clamp[y + r] << 16) | (clamp[y + g] << 8) | clamp[y + b];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts and downscales in one pass so the work scales with the output
+     * size. Each output pixel samples the nearest source chroma and, when
+     * shrinking by 2x or more, the average of a 2x2 luma neighbourhood.
+     */
+    static void i420ToArgb(byte[] yuv, int width, int height, int[] argb,
+                           int outWidth, int outHeight) {
+        if (outWidth == width && outHeight == height) {
+            i420ToArgb(yuv, width, height, argb);
+            return;
+        }
+        int[] xMap = new int[outWidth];
+        for (int x = 0; x < outWidth; x++) {
+            xMap[x] = (int) (((2L * x + 1) * width) / (2L * outWidth));
+        }
+        ScaledRowTask task = new ScaledRowTask(yuv, width, height, argb, outWidth, outHeight, xMap, 0, outHeight);
+        if (outHeight <= ROWS_PER_TASK * 2 || PARALLELISM == 1) {
+            task.compute();
+        } else {
+            Pool.INSTANCE.invoke(task);
+        }
+    }
+
+    private static void convertScaledRows(byte[] yuv, int width, int height, int[] argb,
+                                          int outWidth, int outHeight, int[] xMap,
+                                          int fromRow, int toRow) {
+        int halfWidth = (width + 1) >> 1;
+        int halfHeight = (height + 1) >> 1;
+        int uOffset = width * height;
+        int vOffset = uOffset + halfWidth * halfHeight;
+        boolean average = outWidth * 2 <= width && outHeight * 2 <= height;
+        int[] clamp = CLAMP;
+
+        for (int oy = fromRow; oy < toRow; oy++) {
+            int sy = (int) (((2L * oy + 1) * height) / (2L * outHeight));
+            int yRow = sy * width;
+            int yRowBelow = sy + 1 < height ? yRow + width : yRow;
+            int cRow = (sy >> 1) * halfWidth;
+            int out = oy * outWidth;
+
+            for (int ox = 0; ox < outWidth; ox++) {
+                int sx = xMap[ox];
+                int y;
+                if (average) {
+                    int sxRight = sx + 1 < width ? sx + 1 : sx;
+                    y = ((yuv[yRow + sx] & 0xff) + (yuv[yRow + sxRight] & 0xff)
+                            + (yuv[yRowBelow + sx] & 0xff) + (yuv[yRowBelow + sxRight] & 0xff) + 2) >> 2;
+                } else {
+                    y = yuv[yRow + sx] & 0xff;
+                }
+                int u = yuv[uOffset + cRow + (sx >> 1)] & 0xff;
+                int v = yuv[vOffset + cRow + (sx >> 1)] & 0xff;
+                int r = CLAMP_OFFSET + R_V[v];
+                int g = CLAMP_OFFSET - Math.floorDiv(G_U[u] + G_V[v] + 99999, 100000);
+                int b = CLAMP_OFFSET + B_U[u];
+                argb[out + ox] = 0xff000000 | (clamp[y + r] << 16) | (clamp[y + g] << 8) | clamp[y + b];
+            }
+        }
+    }
+
+    private static final class ScaledRowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] yuv;
+        private final int width;
+        private final int height;
+        private final int[] argb;
+        private final int outWidth;
+        private final int outHeight;
+        private final int[] xMap;
+        private final int from;
+        private final int to;
+
+        ScaledRowTask(byte[] yuv, int width, int height, int[] argb,
+                      int outWidth, int outHeight, int[] xMap, int from, int to) {
+            this.yuv = yuv;
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+            this.outWidth = outWidth;
+            this.outHeight = outHeight;
+            this.xMap = xMap;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= ROWS_PER_TASK * 2) {
+                convertScaledRows(yuv, width, height, argb, outWidth, outHeight, xMap, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ScaledRowTask(yuv, width, height, argb, outWidth, outHeight, xMap, from, mid),
+                      new ScaledRowTask(yuv, width, height, argb, outWidth, outHeight, xMap, mid, to));
+        }
+    }
+
+    private static final class RowTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] yuv;
+        private final int width;
+        private final int height;
+        private final int[] argb;
+        private final int from;
+        private final int to;
+
+        RowTask(byte[] yuv, int width, int height, int[] argb, int from, int to) {
+            this.yuv = yuv;
+            this.width = width;
+            this.height = height;
+            this.argb = argb;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= ROWS_PER_TASK) {
+                convertRows(yuv, width, height, argb, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RowTask(yuv, width, height, argb, from, mid),
+                      new RowTask(yuv, width, height, argb, mid, to));
+        }
+    }
+}
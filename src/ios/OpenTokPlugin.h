@@ -31,6 +31,7 @@
 - (void)getOverlayState:(CDVInvokedUrlCommand*)command;
 - (void)setMinimized:(CDVInvokedUrlCommand*)command;
 - (void)setSharedEventListener:(CDVInvokedUrlCommand*)command;
+- (void)getAudioStats:(CDVInvokedUrlCommand*)command;
 
 // Publisher
 - (void)publishAudio:(CDVInvokedUrlCommand*)command;
@@ -38,6 +39,8 @@
 - (void)setCameraPosition:(CDVInvokedUrlCommand*)command;
 - (void)destroyPublisher:(CDVInvokedUrlCommand*)command;
 - (void)getImgData:(CDVInvokedUrlCommand*)command;
+- (void)setStyle:(CDVInvokedUrlCommand*)command;
+- (void)getRendererStats:(CDVInvokedUrlCommand*)command;
 
 // Session
 - (void)connect:(CDVInvokedUrlCommand*)command;
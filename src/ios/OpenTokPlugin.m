@@ -255,6 +255,20 @@
     [self sendUnsupportedResponse: command];
 }
 
+// Styles only tune the Android renderer; nothing to apply here.
+- (void)setStyle:(CDVInvokedUrlCommand*)command {
+    CDVPluginResult* pluginResult = [CDVPluginResult resultWithStatus:CDVCommandStatus_OK];
+    [self.commandDelegate sendPluginResult:pluginResult callbackId:command.callbackId];
+}
+
+- (void)getAudioStats:(CDVInvokedUrlCommand*)command {
+    [self sendUnsupportedResponse: command];
+}
+
+- (void)getRendererStats:(CDVInvokedUrlCommand*)command {
+    [self sendUnsupportedResponse: command];
+}
+
 - (void)sendUnsupportedResponse:(CDVInvokedUrlCommand*)command {
     NSMutableDictionary* err = [[NSMutableDictionary alloc] init];
     [err setObject:@"not supported" forKey:@"error"];
@@ -0,0 +1,194 @@
+package com.tokbox.cordova;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives {@link AudioLoopState} against a fake I/O thread whose transfers
+ * are short spins, or one that blocks. Plain JVM, see run.sh.
+ */
+public final class AudioLoopStateTest {
+
+    private static final long STOP_TIMEOUT_MS = 1000;
+    private static final long PROGRESS_TIMEOUT_MS = 5000;
+
+    public static void main(String[] args) throws InterruptedException {
+        placeholderStopsWithoutWaiting();
+        stopWaitsForTheTransfer();
+        concurrentStartStopAndShutdown();
+        stuckTransferTimesOutWithWarning();
+        System.out.println("AudioLoopStateTest passed");
+    }
+
+    private static void placeholderStopsWithoutWaiting() {
+        List<String> warnings = new ArrayList<>();
+        AudioLoopState state = new AudioLoopState(null, STOP_TIMEOUT_MS, warnings::add);
+        state.start();
+        check(state.isRunning(), "placeholder did not start");
+        long start = System.nanoTime();
+        state.stop();
+        check(!state.isRunning(), "placeholder did not stop");
+        check(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT_MS / 2),
+                "placeholder stop waited");
+        state.shutdown();
+        state.start();
+        check(!state.isRunning(), "placeholder started after shutdown");
+        check(warnings.isEmpty(), "placeholder warned: " + warnings);
+    }
+
+    private static void stopWaitsForTheTransfer() throws InterruptedException {
+        List<String> warnings = new ArrayList<>();
+        FakeWorker worker = new FakeWorker(null);
+        AudioLoopState state = worker.attach(warnings::add);
+        for (int i = 0; i < 500; i++) {
+            int before = worker.transfers.get();
+            state.start();
+            awaitProgress(worker, before, "start " + i);
+            state.stop();
+            check(!worker.inTransfer, "stop " + i + " returned during a transfer");
+            int transfers = worker.transfers.get();
+            Thread.sleep(0, 100000);
+            check(worker.transfers.get() == transfers, "worker ran after stop " + i);
+        }
+        state.shutdown();
+        check(!worker.thread.isAlive(), "worker still alive after shutdown");
+        check(warnings.isEmpty(), "unexpected warnings: " + warnings);
+    }
+
+    // Controllers racing each other must leave the state usable.
+    private static void concurrentStartStopAndShutdown() throws InterruptedException {
+        List<String> warnings = Collections.synchronizedList(new ArrayList<>());
+        FakeWorker worker = new FakeWorker(null);
+        AudioLoopState state = worker.attach(warnings::add);
+        Thread[] controllers = new Thread[4];
+        for (int c = 0; c < controllers.length; c++) {
+            Random random = new Random(c);
+            controllers[c] = new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    if (random.nextBoolean()) {
+                        state.start();
+                    } else {
+                        state.stop();
+                    }
+                }
+            }, "controller-" + c);
+        }
+        for (Thread controller : controllers) {
+            controller.start();
+        }
+        for (Thread controller : controllers) {
+            controller.join();
+        }
+
+        int before = worker.transfers.get();
+        state.start();
+        awaitProgress(worker, before, "start after the race");
+        state.stop();
+        check(!worker.inTransfer, "stop after the race returned during a transfer");
+
+        // shutdown from several threads at once, with a late start
+        Thread[] stoppers = new Thread[3];
+        for (int c = 0; c < stoppers.length; c++) {
+            stoppers[c] = new Thread(state::shutdown, "shutdown-" + c);
+        }
+        state.start();
+        for (Thread stopper : stoppers) {
+            stopper.start();
+        }
+        for (Thread stopper : stoppers) {
+            stopper.join();
+        }
+        worker.thread.join(STOP_TIMEOUT_MS);
+        check(!worker.thread.isAlive(), "worker still alive after shutdown");
+        state.start();
+        check(!state.isRunning(), "started after shutdown");
+        check(warnings.isEmpty(), "unexpected warnings: " + warnings);
+    }
+
+    private static void stuckTransferTimesOutWithWarning() throws InterruptedException {
+        List<String> warnings = new ArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        FakeWorker worker = new FakeWorker(release);
+        AudioLoopState state = worker.attach(warnings::add, 50);
+        state.start();
+        awaitProgress(worker, 0, "stuck start");
+        long start = System.nanoTime();
+        state.stop();
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        check(waitedMs >= 50, "stop gave up after " + waitedMs + " ms");
+        check(warnings.size() == 1, "expected one warning, got " + warnings);
+        check(worker.inTransfer, "worker left a transfer it was stuck in");
+
+        release.countDown();
+        state.shutdown();
+        check(!worker.thread.isAlive(), "worker still alive after shutdown");
+    }
+
+    // Waits for a transfer beyond the first {@code transfers}.
+    private static void awaitProgress(FakeWorker worker, int transfers, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROGRESS_TIMEOUT_MS);
+        while (worker.transfers.get() == transfers) {
+            check(System.nanoTime() < deadline, what + ": worker made no progress");
+            Thread.sleep(0, 100000);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /** Stands in for the capture or render loop. */
+    private static final class FakeWorker implements Runnable {
+
+        final Thread thread = new Thread(this, "fake-audio");
+        final AtomicInteger transfers = new AtomicInteger();
+        volatile boolean inTransfer;
+        private final CountDownLatch block;
+        private volatile AudioLoopState state;
+
+        // block: when set, every transfer waits for it like a stuck read
+        FakeWorker(CountDownLatch block) {
+            this.block = block;
+        }
+
+        AudioLoopState attach(AudioLoopState.Logger logger) {
+            return attach(logger, STOP_TIMEOUT_MS);
+        }
+
+        AudioLoopState attach(AudioLoopState.Logger logger, long stopTimeoutMs) {
+            state = new AudioLoopState(thread, stopTimeoutMs, logger);
+            // a worker left stuck by a failed check must not keep the JVM up
+            thread.setDaemon(true);
+            thread.start();
+            return state;
+        }
+
+        @Override
+        public void run() {
+            while (state.awaitRunning()) {
+                inTransfer = true;
+                transfers.incrementAndGet();
+                if (block != null) {
+                    try {
+                        block.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                } else {
+                    long end = System.nanoTime() + 20000;
+                    while (System.nanoTime() < end) {
+                        // busy, like a transfer in progress
+                    }
+                }
+                inTransfer = false;
+            }
+        }
+    }
+}
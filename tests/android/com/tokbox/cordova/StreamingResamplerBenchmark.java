@@ -0,0 +1,45 @@
+package com.tokbox.cordova;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+/**
+ * Microseconds per 10 ms capture read through {@link StreamingResampler},
+ * with direct native order buffers like the capture thread uses. Plain
+ * JVM, see run.sh.
+ */
+public final class StreamingResamplerBenchmark {
+
+    private static final int WARMUP = 20000;
+    private static final int RUNS = 100000;
+
+    public static void main(String[] args) {
+        report(44100, 48000);
+        report(48000, 44100);
+        report(16000, 48000);
+    }
+
+    private static void report(int inRate, int outRate) {
+        StreamingResampler resampler = new StreamingResampler(inRate, outRate);
+        int samples = inRate / 100;
+        ShortBuffer in = ByteBuffer.allocateDirect(samples * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+        ShortBuffer out = ByteBuffer.allocateDirect(resampler.maxOutput(samples) * 2)
+                .order(ByteOrder.nativeOrder()).asShortBuffer();
+        Random random = new Random(1);
+        for (int i = 0; i < samples; i++) {
+            in.put(i, (short) random.nextInt(1 << 16));
+        }
+        long sink = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += resampler.process(in, samples, out);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            sink += resampler.process(in, samples, out);
+        }
+        double us = (System.nanoTime() - start) / 1e3 / RUNS;
+        System.out.println(String.format("%5d -> %5d Hz %8.2f us per 10 ms read (%d)", inRate, outRate, us, sink & 1));
+    }
+}
@@ -0,0 +1,125 @@
+package com.tokbox.cordova;
+
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+/**
+ * Checks that {@link StreamingResampler} gives the same samples however
+ * the stream is split into reads. Plain JVM, see run.sh.
+ */
+public final class StreamingResamplerTest {
+
+    private static final int[][] RATES = {
+            {44100, 48000}, {48000, 44100}, {16000, 48000}, {48000, 16000}, {8000, 44100}, {48000, 48000}};
+
+    public static void main(String[] args) {
+        for (int[] rates : RATES) {
+            chunkedMatchesWholeStream(rates[0], rates[1]);
+        }
+        equalRatesDelayByOneSample();
+        sineStaysCloseToTheExactCurve();
+        resetStartsANewStream();
+        System.out.println("StreamingResamplerTest passed");
+    }
+
+    // Random read sizes, including single samples, against one big read.
+    private static void chunkedMatchesWholeStream(int inRate, int outRate) {
+        Random random = new Random(inRate ^ outRate);
+        short[] input = randomSignal(random, inRate);
+        short[] whole = resample(new StreamingResampler(inRate, outRate), input, new int[]{input.length});
+        long expected = ((long) input.length * outRate + inRate - 1) / inRate;
+        check(whole.length == expected, inRate + "->" + outRate + ": " + whole.length + " samples, not " + expected);
+
+        int[] chunks = new int[input.length];
+        int count = 0;
+        for (int left = input.length; left > 0; ) {
+            int chunk = Math.min(left, random.nextInt(5) == 0 ? 1 : 1 + random.nextInt(inRate / 50));
+            chunks[count++] = chunk;
+            left -= chunk;
+        }
+        int[] sizes = new int[count];
+        System.arraycopy(chunks, 0, sizes, 0, count);
+        short[] chunked = resample(new StreamingResampler(inRate, outRate), input, sizes);
+        check(chunked.length == whole.length,
+                inRate + "->" + outRate + ": chunked gave " + chunked.length + " samples, whole " + whole.length);
+        for (int i = 0; i < whole.length; i++) {
+            check(chunked[i] == whole[i], inRate + "->" + outRate + ": sample " + i + " differs");
+        }
+    }
+
+    private static void equalRatesDelayByOneSample() {
+        short[] input = randomSignal(new Random(1), 1000);
+        short[] output = resample(new StreamingResampler(1000, 1000), input, new int[]{300, 1, 699});
+        check(output.length == input.length, "equal rates changed the length");
+        check(output[0] == 0, "equal rates: first sample is not the silence before the stream");
+        for (int i = 1; i < output.length; i++) {
+            check(output[i] == input[i - 1], "equal rates: sample " + i + " is not the input delayed by one");
+        }
+    }
+
+    // 1 kHz at 44.1 kHz: linear interpolation is within a fraction of a
+    // percent of the curve, one input sample late.
+    private static void sineStaysCloseToTheExactCurve() {
+        int inRate = 44100;
+        int outRate = 48000;
+        double amplitude = 10000;
+        short[] input = new short[inRate];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * 1000 * i / inRate));
+        }
+        short[] output = resample(new StreamingResampler(inRate, outRate), input, new int[]{441, 441, 43218});
+        for (int k = outRate / inRate + 1; k < output.length; k++) {
+            double t = (double) k * inRate / outRate - 1;
+            double exact = amplitude * Math.sin(2 * Math.PI * 1000 * t / inRate);
+            check(Math.abs(output[k] - exact) < 0.005 * amplitude,
+                    "sample " + k + " is " + output[k] + ", curve " + Math.round(exact));
+        }
+    }
+
+    private static void resetStartsANewStream() {
+        Random random = new Random(2);
+        short[] input = randomSignal(random, 4410);
+        StreamingResampler resampler = new StreamingResampler(44100, 48000);
+        short[] first = resample(resampler, input, new int[]{441, 4410 - 441});
+        resample(resampler, randomSignal(random, 333), new int[]{333});
+        resampler.reset();
+        short[] again = resample(resampler, input, new int[]{4410});
+        check(java.util.Arrays.equals(first, again), "reset did not start over");
+    }
+
+    // Feeds input in reads of the given sizes, checking maxOutput on each.
+    private static short[] resample(StreamingResampler resampler, short[] input, int[] sizes) {
+        ShortBuffer out = ShortBuffer.allocate(resampler.maxOutput(input.length) * 2);
+        int offset = 0;
+        int total = 0;
+        for (int size : sizes) {
+            ShortBuffer in = ShortBuffer.wrap(input, offset, size).slice();
+            ShortBuffer chunkOut = ShortBuffer.allocate(resampler.maxOutput(size));
+            int written = resampler.process(in, size, chunkOut);
+            check(written <= resampler.maxOutput(size), written + " samples from " + size + " exceed maxOutput");
+            check(in.position() == 0 && chunkOut.position() == 0, "process moved a buffer position");
+            for (int i = 0; i < written; i++) {
+                out.put(total + i, chunkOut.get(i));
+            }
+            offset += size;
+            total += written;
+        }
+        short[] result = new short[total];
+        out.get(result, 0, total);
+        return result;
+    }
+
+    private static short[] randomSignal(Random random, int length) {
+        short[] signal = new short[length];
+        for (int i = 0; i < length; i++) {
+            signal[i] = (short) random.nextInt(1 << 16);
+        }
+        return signal;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
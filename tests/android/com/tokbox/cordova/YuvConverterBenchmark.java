@@ -0,0 +1,39 @@
+package com.tokbox.cordova;
+
+import java.util.Random;
+
+/**
+ * Milliseconds per 720p snapshot conversion: the old floating point
+ * decodeYUV420, {@link YuvConverter} on one thread, and split across the
+ * pool. Plain JVM, see run.sh.
+ */
+public final class YuvConverterBenchmark {
+
+    private static final int WIDTH = 1280;
+    private static final int HEIGHT = 720;
+    private static final int WARMUP = 20;
+    private static final int RUNS = 50;
+
+    public static void main(String[] args) {
+        byte[] yuv = YuvConverterTest.randomFrame(new Random(1), WIDTH, HEIGHT);
+        int[] argb = new int[WIDTH * HEIGHT];
+        int chromaRows = (HEIGHT + 1) >> 1;
+
+        report("decodeYUV420", () -> YuvConverterTest.decodeYUV420(argb, yuv, WIDTH, HEIGHT));
+        report("YuvConverter, one thread", () -> YuvConverter.convertRows(yuv, WIDTH, HEIGHT, argb, 0, chromaRows));
+        report("YuvConverter, fork-join", () -> YuvConverter.i420ToArgb(yuv, WIDTH, HEIGHT, argb));
+        report("YuvConverter, to 320x180", () -> YuvConverter.i420ToArgb(yuv, WIDTH, HEIGHT, argb, 320, 180));
+    }
+
+    private static void report(String name, Runnable conversion) {
+        for (int i = 0; i < WARMUP; i++) {
+            conversion.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            conversion.run();
+        }
+        double ms = (System.nanoTime() - start) / 1e6 / RUNS;
+        System.out.println(String.format("%-28s %8.2f ms/frame", name, ms));
+    }
+}
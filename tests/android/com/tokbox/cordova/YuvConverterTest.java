@@ -0,0 +1,175 @@
+package com.tokbox.cordova;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Checks {@link YuvConverter} against the floating point decodeYUV420 it
+ * replaced. Plain JVM, see run.sh.
+ */
+public final class YuvConverterTest {
+
+    // the one chroma pair whose exact green is an integer that the double
+    // arithmetic of decodeYUV420 rounds down by one
+    private static final int ROUNDING_U = 28;
+    private static final int ROUNDING_V = 228;
+
+    public static void main(String[] args) {
+        everyChromaPairMatchesReference();
+        randomFramesMatchReference();
+        scaledConversionSamplesTheSource();
+        croppedConversionMatchesFullConversion();
+        System.out.println("YuvConverterTest passed");
+    }
+
+    // Every (Y, U, V): a 256x2 frame with Y = column per chroma pair.
+    private static void everyChromaPairMatchesReference() {
+        int width = 256;
+        int height = 2;
+        byte[] yuv = new byte[YuvConverter.i420Size(width, height)];
+        for (int i = 0; i < width * height; i++) {
+            yuv[i] = (byte) (i % width);
+        }
+        int[] actual = new int[width * height];
+        int[] expected = new int[width * height];
+        int uOffset = width * height;
+        int vOffset = uOffset + width / 2;
+
+        for (int u = 0; u < 256; u++) {
+            for (int v = 0; v < 256; v++) {
+                for (int i = 0; i < width / 2; i++) {
+                    yuv[uOffset + i] = (byte) u;
+                    yuv[vOffset + i] = (byte) v;
+                }
+                YuvConverter.i420ToArgb(yuv, width, height, actual);
+                decodeYUV420(expected, yuv, width, height);
+                for (int i = 0; i < actual.length; i++) {
+                    if (actual[i] != expected[i]) {
+                        check(u == ROUNDING_U && v == ROUNDING_V && actual[i] - expected[i] == 1 << 8,
+                                "U=" + u + " V=" + v + " Y=" + (i % width) + ": "
+                                        + Integer.toHexString(actual[i]) + " != " + Integer.toHexString(expected[i]));
+                    }
+                }
+            }
+        }
+    }
+
+    // Odd sizes and frames large enough to be split across the pool.
+    private static void randomFramesMatchReference() {
+        Random random = new Random(1);
+        int[][] sizes = {{1, 1}, {3, 5}, {17, 9}, {641, 359}, {1280, 720}};
+        for (int[] size : sizes) {
+            int width = size[0];
+            int height = size[1];
+            byte[] yuv = randomFrame(random, width, height);
+            int[] actual = new int[width * height];
+            int[] expected = new int[width * height];
+            YuvConverter.i420ToArgb(yuv, width, height, actual);
+            decodeYUV420(expected, yuv, width, height);
+            for (int i = 0; i < actual.length; i++) {
+                if (actual[i] != expected[i]) {
+                    int chroma = (i / width >> 1) * ((width + 1) >> 1) + (i % width >> 1);
+                    int u = yuv[width * height + chroma] & 0xff;
+                    int v = yuv[width * height + ((width + 1) >> 1) * ((height + 1) >> 1) + chroma] & 0xff;
+                    check(u == ROUNDING_U && v == ROUNDING_V,
+                            width + "x" + height + " pixel " + i + " differs");
+                }
+            }
+        }
+    }
+
+    // Shrinking by less than 2x picks single source pixels.
+    private static void scaledConversionSamplesTheSource() {
+        Random random = new Random(2);
+        int width = 321;
+        int height = 241;
+        int outWidth = 200;
+        int outHeight = 150;
+        byte[] yuv = randomFrame(random, width, height);
+        int[] full = new int[width * height];
+        int[] scaled = new int[outWidth * outHeight];
+        YuvConverter.i420ToArgb(yuv, width, height, full);
+        YuvConverter.i420ToArgb(yuv, width, height, scaled, outWidth, outHeight);
+        for (int oy = 0; oy < outHeight; oy++) {
+            int sy = (int) (((2L * oy + 1) * height) / (2L * outHeight));
+            for (int ox = 0; ox < outWidth; ox++) {
+                int sx = (int) (((2L * ox + 1) * width) / (2L * outWidth));
+                check(scaled[oy * outWidth + ox] == full[sy * width + sx],
+                        "scaled pixel " + ox + "," + oy + " is not source pixel " + sx + "," + sy);
+            }
+        }
+    }
+
+    private static void croppedConversionMatchesFullConversion() {
+        Random random = new Random(3);
+        int width = 97;
+        int height = 61;
+        int[] rect = {10, 6, 51, 33};
+        byte[] yuv = randomFrame(random, width, height);
+        int[] full = new int[width * height];
+        YuvConverter.i420ToArgb(yuv, width, height, full);
+
+        byte[] cropped = new byte[YuvConverter.i420Size(rect[2], rect[3])];
+        YuvConverter.cropI420(ByteBuffer.wrap(yuv), width, height, rect, cropped);
+        int[] argb = new int[rect[2] * rect[3]];
+        YuvConverter.i420ToArgb(cropped, rect[2], rect[3], argb);
+        for (int y = 0; y < rect[3]; y++) {
+            for (int x = 0; x < rect[2]; x++) {
+                check(argb[y * rect[2] + x] == full[(rect[1] + y) * width + rect[0] + x],
+                        "cropped pixel " + x + "," + y + " differs");
+            }
+        }
+    }
+
+    static byte[] randomFrame(Random random, int width, int height) {
+        byte[] yuv = new byte[YuvConverter.i420Size(width, height)];
+        random.nextBytes(yuv);
+        return yuv;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    /**
+     * Copy of the deprecated MyRenderer.decodeYUV420, which cannot be
+     * loaded without the Android SDK.
+     */
+    static void decodeYUV420(int[] rgba, byte[] yuv420, int width, int height) {
+        int half_width = (width + 1) >> 1;
+        int half_height = (height + 1) >> 1;
+        int y_size = width * height;
+        int uv_size = half_width * half_height;
+
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+
+                double y = (yuv420[j * width + i]) & 0xff;
+                double v = (yuv420[y_size + (j >> 1) * half_width + (i >> 1)]) & 0xff;
+                double u = (yuv420[y_size + uv_size + (j >> 1) * half_width + (i >> 1)]) & 0xff;
+
+                double r;
+                double g;
+                double b;
+
+                r = y + 1.402 * (u - 128);
+                g = y - 0.34414 * (v - 128) - 0.71414 * (u - 128);
+                b = y + 1.772 * (v - 128);
+
+                if (r < 0) r = 0;
+                else if (r > 255) r = 255;
+                if (g < 0) g = 0;
+                else if (g > 255) g = 255;
+                if (b < 0) b = 0;
+                else if (b > 255) b = 255;
+
+                int ir = (int) r;
+                int ig = (int) g;
+                int ib = (int) b;
+                rgba[j * width + i] = 0xff000000 | (ir << 16) | (ig << 8) | ib;
+            }
+        }
+    }
+}
@@ -0,0 +1,20 @@
+#!/bin/sh
+# Runs the plain JVM tests of the Android sources that do not depend on the
+# Android SDK. Pass "bench" to run the benchmarks instead.
+set -e
+cd "$(dirname "$0")/../.."
+
+SOURCES="src/android/YuvConverter.java src/android/AudioLoopState.java src/android/StreamingResampler.java"
+OUT=$(mktemp -d)
+trap 'rm -rf "$OUT"' EXIT
+
+javac -d "$OUT" $SOURCES tests/android/com/tokbox/cordova/*.java
+
+if [ "$1" = "bench" ]; then
+    SUFFIX=Benchmark
+else
+    SUFFIX=Test
+fi
+for f in tests/android/com/tokbox/cordova/*$SUFFIX.java; do
+    java -cp "$OUT" com.tokbox.cordova.$(basename "$f" .java)
+done
@@ -30,6 +30,13 @@ window.OT = {
   updateViews: function() {
     return TBUpdateObjects();
   },
+  getAudioStats: function(callback) {
+    return Cordova.exec((function(stats) {
+      return callback(null, stats);
+    }), (function(error) {
+      return callback(error);
+    }), OTPlugin, "getAudioStats", []);
+  },
   getHelper: function() {
     if (typeof jasmine === "undefined" || !jasmine || !jasmine['getEnv']) {
       window.jasmine = {
@@ -183,7 +190,7 @@ TBEvent = (function() {
 
 })();
 
-var OTPublisherError, OTReplacePublisher, TBError, TBGenerateDomHelper, TBGetScreenRatios, TBGetZIndex, TBSuccess, TBUpdateObjects, getPosition, pdebug, replaceWithVideoStream, streamElements;
+var OTPublisherError, OTReplacePublisher, TBError, TBGenerateDomHelper, TBGetScreenRatios, TBGetZIndex, TBImgDataSuccess, TBImgMimeType, TBSuccess, TBUpdateObjects, getPosition, pdebug, replaceWithVideoStream, streamElements;
 
 streamElements = {};
 
@@ -308,6 +315,35 @@ TBGetScreenRatios = function() {
   };
 };
 
+TBImgMimeType = function(options) {
+  var format;
+  format = "png";
+  if ((options != null) && (options.format != null)) {
+    format = String(options.format).toLowerCase().replace("image/", "");
+  }
+  if (format === "jpg") {
+    format = "jpeg";
+  }
+  if (format !== "jpeg" && format !== "webp") {
+    format = "png";
+  }
+  return "image/" + format;
+};
+
+TBImgDataSuccess = function(options, callback) {
+  return function(img) {
+    var blob;
+    if (img instanceof ArrayBuffer) {
+      blob = new Blob([img], {
+        type: TBImgMimeType(options)
+      });
+      return callback(null, URL.createObjectURL(blob), blob);
+    } else {
+      return callback(null, img);
+    }
+  };
+};
+
 OTReplacePublisher = function() {
   var attribute, attributes, childClass, childElement, el, elAttribute, element, elementChildren, elements, _i, _j, _k, _len, _len1, _len2;
   elements = document.getElementsByClassName('OT_root OT_publisher');
@@ -447,15 +483,26 @@ TBPublisher = (function() {
     }
   };
 
-  TBPublisher.prototype.getImgData = function(callback) {
+  TBPublisher.prototype.getImgData = function(options, callback) {
     var errorCb, successCb;
+    if (typeof options === "function") {
+      callback = options;
+      options = {};
+    }
     errorCb = function(error) {
       return callback(error);
     };
-    successCb = function(img) {
-      return callback(null, img);
-    };
-    Cordova.exec(successCb, errorCb, OTPlugin, "getImgData", [PublisherStreamId]);
+    successCb = TBImgDataSuccess(options, callback);
+    Cordova.exec(successCb, errorCb, OTPlugin, "getImgData", [PublisherStreamId, options != null ? options : {}]);
+    return this;
+  };
+
+  TBPublisher.prototype.getRendererStats = function(callback) {
+    Cordova.exec((function(stats) {
+      return callback(null, stats);
+    }), (function(error) {
+      return callback(error);
+    }), OTPlugin, "getRendererStats", [PublisherStreamId]);
     return this;
   };
 
@@ -482,6 +529,7 @@ TBPublisher = (function() {
   };
 
   TBPublisher.prototype.setStyle = function(style, value) {
+    Cordova.exec(TBSuccess, TBError, OTPlugin, "setStyle", [PublisherStreamId, style, "" + value]);
     return this;
   };
 
@@ -975,15 +1023,26 @@ TBSubscriber = (function() {
     return 0;
   };
 
-  TBSubscriber.prototype.getImgData = function(callback) {
+  TBSubscriber.prototype.getImgData = function(options, callback) {
     var errorCb, successCb;
+    if (typeof options === "function") {
+      callback = options;
+      options = {};
+    }
     errorCb = function(error) {
       return callback(error);
     };
-    successCb = function(img) {
-      return callback(null, img);
-    };
-    Cordova.exec(successCb, errorCb, OTPlugin, "getImgData", [this.streamId]);
+    successCb = TBImgDataSuccess(options, callback);
+    Cordova.exec(successCb, errorCb, OTPlugin, "getImgData", [this.streamId, options != null ? options : {}]);
+    return this;
+  };
+
+  TBSubscriber.prototype.getRendererStats = function(callback) {
+    Cordova.exec((function(stats) {
+      return callback(null, stats);
+    }), (function(error) {
+      return callback(error);
+    }), OTPlugin, "getRendererStats", [this.streamId]);
     return this;
   };
 
@@ -996,6 +1055,7 @@ TBSubscriber = (function() {
   };
 
   TBSubscriber.prototype.setStyle = function(style, value) {
+    Cordova.exec(TBSuccess, TBError, OTPlugin, "setStyle", [this.streamId, style, "" + value]);
     return this;
   };
 